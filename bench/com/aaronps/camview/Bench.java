@@ -0,0 +1,230 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Minimal benchmark harness: warms up, measures a few fixed time iterations
+ * and reports the average time per operation. Results can be saved and
+ * compared against a recorded baseline.
+ *
+ * @author krom
+ */
+final class Bench {
+
+    /**
+     * A benchmark body, runs the operation <code>ops</code> times and returns
+     * something depending on the work done so it is not optimized away.
+     */
+    interface Body {
+
+        long run(final int ops) throws Exception;
+    }
+
+    /**
+     * Throughput benchmarks that run on their own threads, it returns the
+     * operations done so far.
+     */
+    interface Counter {
+
+        long count();
+    }
+
+    private static final long WARMUP_NS = Long.getLong("bench.warmup", 1000) * 1000000L;
+    private static final long ITERATION_NS = Long.getLong("bench.iteration", 500) * 1000000L;
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+
+    /**
+     * Slower than the baseline by more than this is reported, by more than
+     * FAIL_TOLERANCE it is a regression and the run fails. The runs vary some
+     * percent between them, so the first is only a warning.
+     */
+    private static final double TOLERANCE = 0.10;
+    private static final double FAIL_TOLERANCE = Double.parseDouble(System.getProperty("bench.fail", "0.25"));
+
+    // not a benchmark, the parallel ones depend on it
+    private static final String CPUS = "cpus";
+
+    private final List<String> mNames = new ArrayList<>();
+    private final Properties mResults = new Properties();
+    private final String mFilter;
+    private long mSink = 0;
+
+    Bench(final String filter) {
+        mFilter = filter;
+    }
+
+    private boolean skip(final String name) {
+        return mFilter != null && !name.contains(mFilter);
+    }
+
+    void run(final String name, final Body body) throws Exception {
+        if (skip(name))
+        {
+            return;
+        }
+
+        // calibrate so each call takes around 10ms
+        int ops = 1;
+        long elapsed;
+        do
+        {
+            final long start = System.nanoTime();
+            mSink += body.run(ops);
+            elapsed = System.nanoTime() - start;
+            if (elapsed < 10000000L)
+            {
+                ops *= 2;
+            }
+        } while (elapsed < 10000000L);
+
+        final long warmupEnd = System.nanoTime() + WARMUP_NS;
+        while (System.nanoTime() < warmupEnd)
+        {
+            mSink += body.run(ops);
+        }
+
+        final double[] samples = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            long total = 0, count = 0;
+            final long start = System.nanoTime();
+            do
+            {
+                mSink += body.run(ops);
+                count += ops;
+                total = System.nanoTime() - start;
+            } while (total < ITERATION_NS);
+
+            samples[i] = (double) total / count;
+        }
+
+        report(name, samples);
+    }
+
+    void run(final String name, final Counter counter) throws Exception {
+        if (skip(name))
+        {
+            return;
+        }
+
+        Thread.sleep(WARMUP_NS / 1000000L);
+
+        final double[] samples = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            final long c0 = counter.count();
+            final long t0 = System.nanoTime();
+            Thread.sleep(ITERATION_NS / 1000000L);
+            final long c1 = counter.count();
+            final long t1 = System.nanoTime();
+
+            samples[i] = c1 > c0 ? (double) (t1 - t0) / (c1 - c0) : Double.NaN;
+        }
+
+        report(name, samples);
+    }
+
+    private void report(final String name, final double[] samples) {
+        double mean = 0;
+        for (double s : samples)
+        {
+            mean += s;
+        }
+        mean /= samples.length;
+
+        double var = 0;
+        for (double s : samples)
+        {
+            var += (s - mean) * (s - mean);
+        }
+        final double dev = Math.sqrt(var / samples.length);
+
+        mNames.add(name);
+        mResults.setProperty(name, String.format(Locale.ROOT, "%.1f", mean));
+        System.out.println(String.format(Locale.ROOT, "%-50s %14.1f ns/op  +/- %.1f", name, mean, dev));
+    }
+
+    /**
+     * Prints the comparison with the baseline.
+     *
+     * @return true if nothing got slower than FAIL_TOLERANCE.
+     */
+    boolean compare(final File baselineFile) throws IOException {
+        if (!baselineFile.exists())
+        {
+            System.out.println("No baseline at " + baselineFile);
+            return true;
+        }
+
+        final Properties baseline = load(baselineFile);
+        boolean ok = true;
+
+        System.out.println();
+        System.out.println("Against baseline " + baselineFile + ":");
+
+        final String cpus = Integer.toString(Runtime.getRuntime().availableProcessors());
+        if (!cpus.equals(baseline.getProperty(CPUS, cpus)))
+        {
+            System.out.println("Baseline recorded with " + baseline.getProperty(CPUS)
+                    + " cpus, this machine has " + cpus + ", record one here to compare");
+        }
+
+        for (String name : mNames)
+        {
+            final String base = baseline.getProperty(name);
+            if (base == null)
+            {
+                System.out.println(String.format(Locale.ROOT, "%-50s %14s", name, "new"));
+                continue;
+            }
+
+            final double now = Double.parseDouble(mResults.getProperty(name));
+            final double then = Double.parseDouble(base);
+            final double change = (now - then) / then;
+            final boolean regression = change > FAIL_TOLERANCE;
+            ok &= !regression;
+
+            System.out.println(String.format(Locale.ROOT, "%-50s %+13.1f%%%s", name, change * 100,
+                                             regression ? "  REGRESSION" : change > TOLERANCE ? "  SLOWER" : ""));
+        }
+
+        return ok;
+    }
+
+    /**
+     * Saves the results, if the file exists the results of benchmarks not run
+     * this time are kept.
+     */
+    void save(final File file) throws IOException {
+        final Properties merged = file.exists() ? load(file) : new Properties();
+        merged.putAll(mResults);
+        merged.setProperty(CPUS, Integer.toString(Runtime.getRuntime().availableProcessors()));
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (OutputStream os = new FileOutputStream(file))
+        {
+            merged.store(os, "ns/op, " + System.getProperty("java.vm.name")
+                    + " " + System.getProperty("java.version")
+                    + ", " + Runtime.getRuntime().availableProcessors() + " cpus"
+                    + ", sink " + (mSink & 1));
+        }
+    }
+
+    private static Properties load(final File file) throws IOException {
+        final Properties p = new Properties();
+        try (InputStream is = new FileInputStream(file))
+        {
+            p.load(is);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,323 @@
+package com.aaronps.camview;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmarks of the frame hot paths, run them with <code>ant bench</code>,
+ * record a new baseline with <code>ant bench-baseline</code>.
+ * <p>
+ * Arguments: results file, baseline file and optionally a filter, only the
+ * benchmarks whose name contains it are run. Exits with 1 when a benchmark is
+ * slower than the baseline by more than <code>-Dbench.fail</code> (0.25).
+ *
+ * @author krom
+ */
+public final class CamViewBenchmarks {
+
+    private static final int[][] SIZES = { { 640, 480 }, { 1280, 720 }, { 1920, 1080 } };
+
+    public static void main(String[] args) throws Exception {
+        final File results = new File(args[0]);
+        final File baseline = new File(args[1]);
+        final Bench bench = new Bench(args.length > 2 ? args[2] : null);
+
+        protocol(bench);
+        sendBuffer(bench);
+        nv21(bench);
+        jpeg(bench);
+        paint(bench);
+
+        if (results.getCanonicalFile().equals(baseline.getCanonicalFile()))
+        {
+            bench.save(baseline);
+            System.out.println("Baseline recorded in " + baseline);
+        }
+        else
+        {
+            bench.save(results);
+            if (!bench.compare(baseline))
+            {
+                System.out.println("Some benchmarks are much slower than the baseline");
+                System.exit(1);
+            }
+        }
+    }
+
+    private static final class NullListener implements RemoteCamera.Listener {
+
+        final AtomicLong mFrames = new AtomicLong();
+
+        @Override
+        public void onConnected(CameraSource ct) {
+        }
+
+        @Override
+        public void onDisconnected(CameraSource ct) {
+        }
+
+        @Override
+        public void onVideoReady(CameraSource ct, CameraInfo info) {
+        }
+
+        @Override
+        public void onSizeListReceived(CameraSource ct, String[] sizes) {
+        }
+
+        @Override
+        public void onFrameReceived(CameraSource ct, FrameBuffer frame) {
+            mFrames.lazySet(mFrames.get() + 1);
+        }
+    }
+
+    private static byte[] picMessage(final int len) {
+        final byte[] header = ("Pic " + len + "\n").getBytes();
+        final byte[] msg = new byte[header.length + len];
+        System.arraycopy(header, 0, msg, 0, header.length);
+        return msg;
+    }
+
+    private static void protocol(final Bench bench) throws Exception {
+        final NullListener listener = new NullListener();
+        final RemoteCamera camera = new RemoteCamera(listener, "127.0.0.1", 1);
+
+        // whole messages already in the receive buffer, no socket reads
+        final ProtocolParser parser = new ProtocolParser(camera, listener, FramePool.getDefault());
+        final byte[] pic = picMessage(1000);
+        final ByteBuffer bb = ByteBuffer.allocate(4096);
+        bench.run("protocol.parse.pic", (ops) -> {
+            for (int i = 0; i < ops; i++)
+            {
+                bb.clear();
+                bb.put(pic);
+                bb.flip();
+                parser.parse(bb);
+            }
+            return listener.mFrames.get();
+        });
+
+        final byte[] ready = "Ready 1280 720 256\n".getBytes();
+        bench.run("protocol.parse.ready", (ops) -> {
+            for (int i = 0; i < ops; i++)
+            {
+                bb.clear();
+                bb.put(ready);
+                bb.flip();
+                parser.parse(bb);
+            }
+            return bb.position();
+        });
+
+        // endless stream of 8KB pics over loopback
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+            final byte[] one = picMessage(8 * 1024);
+            final ByteBuffer stream = ByteBuffer.allocate(one.length * 64);
+            while (stream.remaining() >= one.length)
+            {
+                stream.put(one);
+            }
+            stream.flip();
+
+            final Thread writer = new Thread(() -> {
+                try (SocketChannel sc = server.accept())
+                {
+                    while (!Thread.currentThread().isInterrupted())
+                    {
+                        final ByteBuffer b = stream.duplicate();
+                        while (b.hasRemaining())
+                        {
+                            sc.write(b);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    // finished
+                }
+            }, "bench-writer");
+            writer.start();
+
+            final SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            final Thread reader = new Thread(() -> {
+                try
+                {
+                    camera.handleConnection(client, ByteBuffer.allocate(64 * 1024));
+                }
+                catch (IOException e)
+                {
+                    // finished
+                }
+            }, "bench-reader");
+            reader.start();
+
+            bench.run("protocol.handleConnection.8k", () -> listener.mFrames.get());
+
+            client.close();
+            writer.interrupt();
+            reader.join();
+            writer.join();
+        }
+    }
+
+    private static void sendBuffer(final Bench bench) throws Exception {
+        final ByteBufferOutputStream out = new ByteBufferOutputStream(ByteBuffer.allocate(256));
+        final byte[] size = "1920x1080".getBytes();
+
+        bench.run("ByteBufferOutputStream.writeInt", (ops) -> {
+            for (int i = 0; i < ops; i++)
+            {
+                out.reset();
+                out.writeInt(1234567 + (i & 0xff));
+            }
+            return out.getByteBuffer().position();
+        });
+
+        bench.run("ByteBufferOutputStream.write", (ops) -> {
+            for (int i = 0; i < ops; i++)
+            {
+                out.reset();
+                out.write(RemoteCamera.Protocol.REQ_BEGINVIDEO);
+                out.write(size);
+                out.write(10);
+            }
+            return out.getByteBuffer().position();
+        });
+    }
+
+    private static void nv21(final Bench bench) throws Exception {
+        final Random random = new Random(1);
+        for (int[] s : SIZES)
+        {
+            final int w = s[0], h = s[1];
+            final byte[] src = new byte[w * h * 3 / 2];
+            random.nextBytes(src);
+            final int[] dst = new int[w * h];
+            final String suffix = "." + w + "x" + h;
+
+            bench.run("nv21ToRGB" + suffix, (ops) -> {
+                for (int i = 0; i < ops; i++)
+                {
+                    CameraView.nv21ToRGB(src, 0, dst, w, h);
+                }
+                return dst[i(ops, dst)];
+            });
+
+            bench.run("Nv21Converter.convert" + suffix, (ops) -> {
+                for (int i = 0; i < ops; i++)
+                {
+                    Nv21Converter.convert(src, 0, dst, w, h);
+                }
+                return dst[i(ops, dst)];
+            });
+        }
+    }
+
+    private static int i(final int ops, final int[] a) {
+        return ops % a.length;
+    }
+
+    /**
+     * A synthetic frame, gradients plus some noise so it doesn't compress too
+     * much.
+     */
+    static byte[] sampleJpeg(final int w, final int h) throws IOException {
+        final BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = bi.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.BLUE, w, h, Color.ORANGE));
+        g.fillRect(0, 0, w, h);
+        g.dispose();
+
+        final Random random = new Random(w * 31 + h);
+        for (int n = 0; n < w * h / 8; n++)
+        {
+            bi.setRGB(random.nextInt(w), random.nextInt(h), random.nextInt());
+        }
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ImageIO.write(bi, "jpg", os);
+        return os.toByteArray();
+    }
+
+    private static void jpeg(final Bench bench) throws Exception {
+        for (int[] s : SIZES)
+        {
+            final byte[] jpeg = sampleJpeg(s[0], s[1]);
+
+            bench.run("ImageIO.read." + s[0] + "x" + s[1], (ops) -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                {
+                    sum += ImageIO.read(new ByteArrayInputStream(jpeg)).getWidth();
+                }
+                return sum;
+            });
+        }
+    }
+
+    private static void paint(final Bench bench) throws Exception {
+        final CameraView view = new CameraView();
+        final byte[] jpeg = sampleJpeg(1920, 1080);
+        view.setImageSize(1920, 1080);
+        view.updatePic(ByteBuffer.wrap(jpeg));
+        final BufferedImage frame = ImageIO.read(new ByteArrayInputStream(jpeg));
+
+        final BufferedImage screen = new BufferedImage(1280, 800, BufferedImage.TYPE_INT_RGB);
+        view.setSize(screen.getWidth(), screen.getHeight());
+
+        for (int rotation = 0; rotation < 2; rotation++)
+        {
+            view.setRotation(rotation);
+            // the same frame again, only the cached image is drawn
+            bench.run("CameraView.paint.1080p-to-1280x800.rot" + rotation * 90, (ops) -> {
+                for (int i = 0; i < ops; i++)
+                {
+                    final Graphics2D g = screen.createGraphics();
+                    view.paint(g);
+                    g.dispose();
+                }
+                return screen.getRGB(640, 400);
+            });
+
+            // every paint has a new frame, it is scaled into the cache first
+            bench.run("CameraView.paint.1080p-to-1280x800.rot" + rotation * 90 + ".newframe", (ops) -> {
+                for (int i = 0; i < ops; i++)
+                {
+                    view.show(frame);
+                    final Graphics2D g = screen.createGraphics();
+                    view.paint(g);
+                    g.dispose();
+                }
+                return screen.getRGB(640, 400);
+            });
+        }
+
+        // resizing the window, the cache is allocated again every paint
+        view.setRotation(0);
+        bench.run("CameraView.paint.1080p-to-1280x800.resize", (ops) -> {
+            for (int i = 0; i < ops; i++)
+            {
+                view.setSize(screen.getWidth() - (i & 1), screen.getHeight() - (i & 1));
+                final Graphics2D g = screen.createGraphics();
+                view.paint(g);
+                g.dispose();
+            }
+            return screen.getRGB(640, 400);
+        });
+    }
+}
@@ -0,0 +1,351 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End to end load test: N simulated cameras ({@link CameraSimulator}) and N
+ * {@link RemoteCamera} clients on a {@link CameraEngine}, all in this
+ * process. Run it with <code>ant loadtest</code>.
+ * <p>
+ * After a warm up it measures for a while: frames and bytes per second, the
+ * process cpu, the heap and the gc, and the latency from the simulator
+ * sending a frame to the listener receiving it (the simulator stamps its send
+ * time in the frames). With -decode the frames are also decoded, through a
+ * FrameDecoder per camera on a shared pool, like the camera wall.
+ * <p>
+ * Arguments: <code>[-cameras n] [-seconds s] [-warmup s] [-size WxH]
+ * [-type jpeg|nv21] [-fps n] [-latency ms] [-threads n] [-decode]
+ * [-adaptive] [-port first] [-out file]</code>. With -adaptive the clients
+ * use the adaptive request rate instead of requesting as fast as possible.
+ * The report is printed and saved as a properties file.
+ *
+ * @author krom
+ */
+public final class LoadTest {
+
+    private int mCameras = 10;
+    private int mSeconds = 10;
+    private int mWarmup = 3;
+    private String mSize = "640x480";
+    private int mType = CameraInfo.TYPE_JPEG;
+    private int mFps = 15;
+    private long mLatency = 0;
+    private int mThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    private boolean mDecode = false;
+    private boolean mAdaptive = false;
+    private int mPort = 20000;
+    private File mOut = new File("build/loadtest.properties");
+
+    // all the clients record here
+    private final Histogram mLatencyHistogram = new Histogram();
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+    private volatile boolean mMeasuring = false;
+
+    private final List<Client> mClients = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        // hundreds of connection messages otherwise
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        final LoadTest test = new LoadTest();
+        test.parse(args);
+        test.run();
+    }
+
+    private void parse(final String[] args) {
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-cameras":
+                    mCameras = Integer.parseInt(args[++i]);
+                    break;
+                case "-seconds":
+                    mSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "-warmup":
+                    mWarmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-size":
+                    mSize = args[++i];
+                    break;
+                case "-type":
+                    mType = args[++i].equals("nv21") ? CameraInfo.TYPE_NV21 : CameraInfo.TYPE_JPEG;
+                    break;
+                case "-fps":
+                    mFps = Integer.parseInt(args[++i]);
+                    break;
+                case "-latency":
+                    mLatency = Long.parseLong(args[++i]);
+                    break;
+                case "-threads":
+                    mThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-decode":
+                    mDecode = true;
+                    break;
+                case "-adaptive":
+                    mAdaptive = true;
+                    break;
+                case "-port":
+                    mPort = Integer.parseInt(args[++i]);
+                    break;
+                case "-out":
+                    mOut = new File(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        final CameraSimulator simulator = new CameraSimulator(mThreads);
+        simulator.setSizes(mSize);
+        simulator.setType(mType);
+        simulator.setFps(mFps);
+        simulator.setLatency(mLatency);
+        simulator.listen(mPort, mCameras);
+
+        final CameraEngine engine = new CameraEngine(mThreads);
+        final ExecutorService decoderPool = mDecode
+                                            ? FrameDecoder.newDecoderPool(Runtime.getRuntime().availableProcessors())
+                                            : null;
+
+        for (int n = 0; n < mCameras; n++)
+        {
+            final Client client = new Client(mPort + n, decoderPool);
+            mClients.add(client);
+            engine.add(client.mCamera);
+        }
+
+        System.out.println("Warming up " + mWarmup + "s, " + mCameras + " cameras");
+        Thread.sleep(mWarmup * 1000L);
+
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final long gcCount0 = gcCount(), gcTime0 = gcTime();
+        final long cpu0 = processCpuTime();
+        final long frames0 = mFrames.get(), bytes0 = mBytes.get(), skipped0 = mSkipped.get();
+        mLatencyHistogram.reset();
+        mMeasuring = true;
+        final long start = System.nanoTime();
+
+        long heapMax = 0, heapSum = 0, samples = 0;
+        final long end = start + mSeconds * 1000000000L;
+        while (System.nanoTime() < end)
+        {
+            Thread.sleep(100);
+            final long used = memory.getHeapMemoryUsage().getUsed();
+            heapMax = Math.max(heapMax, used);
+            heapSum += used;
+            samples++;
+        }
+
+        mMeasuring = false;
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long cpu = processCpuTime() - cpu0;
+
+        final Properties report = new Properties();
+        report.setProperty("cameras", Integer.toString(mCameras));
+        report.setProperty("size", mSize);
+        report.setProperty("type", mType == CameraInfo.TYPE_NV21 ? "nv21" : "jpeg");
+        report.setProperty("decode", Boolean.toString(mDecode));
+        report.setProperty("adaptive", Boolean.toString(mAdaptive));
+        report.setProperty("camera.fps", Integer.toString(mFps));
+        report.setProperty("camera.latency.ms", Long.toString(mLatency));
+        report.setProperty("seconds", String.format("%.2f", seconds));
+        report.setProperty("fps", String.format("%.1f", (mFrames.get() - frames0) / seconds));
+        report.setProperty("fps.per.camera", String.format("%.2f", (mFrames.get() - frames0) / seconds / mCameras));
+        report.setProperty("bytes.per.second", Long.toString((long) ((mBytes.get() - bytes0) / seconds)));
+        report.setProperty("skipped", Long.toString(mSkipped.get() - skipped0));
+        report.setProperty("latency.count", Long.toString(mLatencyHistogram.getCount()));
+        report.setProperty("latency.p50.us", Long.toString(mLatencyHistogram.getPercentile(0.50) / 1000));
+        report.setProperty("latency.p99.us", Long.toString(mLatencyHistogram.getPercentile(0.99) / 1000));
+        report.setProperty("latency.p999.us", Long.toString(mLatencyHistogram.getPercentile(0.999) / 1000));
+        report.setProperty("latency.max.us", Long.toString(mLatencyHistogram.getPercentile(1) / 1000));
+        report.setProperty("cpu.percent", cpu < 0 ? "n/a" : String.format("%.1f", cpu / 1e7 / seconds));
+        report.setProperty("cpus", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        report.setProperty("heap.max.mb", Long.toString(heapMax >> 20));
+        report.setProperty("heap.avg.mb", Long.toString(samples == 0 ? 0 : (heapSum / samples) >> 20));
+        report.setProperty("gc.count", Long.toString(gcCount() - gcCount0));
+        report.setProperty("gc.time.ms", Long.toString(gcTime() - gcTime0));
+
+        if (mDecode)
+        {
+            long decoded = 0, dropped = 0;
+            for (Client c : mClients)
+            {
+                decoded += c.mDecoder.getDecodedCount();
+                dropped += c.mDecoder.getDroppedCount();
+            }
+            report.setProperty("decoded", Long.toString(decoded));
+            report.setProperty("decode.dropped", Long.toString(dropped));
+        }
+
+        for (String key : new TreeSet<>(report.stringPropertyNames()))
+        {
+            System.out.println(key + " = " + report.getProperty(key));
+        }
+
+        mOut.getAbsoluteFile().getParentFile().mkdirs();
+        try (OutputStream os = new FileOutputStream(mOut))
+        {
+            report.store(os, "LoadTest, " + System.getProperty("java.vm.name")
+                    + " " + System.getProperty("java.version"));
+        }
+        System.out.println("Report saved in " + mOut);
+
+        // no listeners called on shutdown, no disconnection noise
+        engine.shutdown();
+        simulator.shutdown();
+        for (Client c : mClients)
+        {
+            c.mRequester.shutdown();
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * @return cpu time of the process in nanoseconds, -1 if the jvm doesn't
+     * tell.
+     */
+    private static long processCpuTime() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+        {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * One client, same as a tile of the camera wall without the window.
+     */
+    private final class Client implements RemoteCamera.Listener {
+
+        final RemoteCamera mCamera;
+        final FrameRequester mRequester;
+        final CameraView mView;
+        final FrameDecoder mDecoder;
+
+        Client(final int port, final ExecutorService decoderPool) {
+            mCamera = new RemoteCamera(this, "127.0.0.1", port);
+            mRequester = new FrameRequester(mCamera);
+            mRequester.setWindow(FrameRequester.AUTO_WINDOW);
+            mRequester.setMinDelay(0);
+            mRequester.setStats(mCamera.getStats());
+            mRequester.setAdaptive(mAdaptive);
+
+            if (decoderPool != null)
+            {
+                mView = new CameraView();
+                mDecoder = new FrameDecoder(mView, decoderPool);
+                mDecoder.setStats(mCamera.getStats());
+            }
+            else
+            {
+                mView = null;
+                mDecoder = null;
+            }
+        }
+
+        @Override
+        public void onConnected(CameraSource cs) {
+            mRequester.resume();
+            try
+            {
+                cs.request_sizelist();
+            }
+            catch (IOException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraSource cs) {
+            mRequester.pause();
+        }
+
+        @Override
+        public void onVideoReady(CameraSource cs, CameraInfo info) {
+            if (mDecoder != null)
+            {
+                mDecoder.clear();
+                mView.setVideoInfo(info);
+            }
+            mRequester.reset();
+            mRequester.request_pic();
+        }
+
+        @Override
+        public void onSizeListReceived(CameraSource cs, String[] sizes) {
+            try
+            {
+                cs.request_beginvideo(sizes[0]);
+            }
+            catch (IOException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void onFrameReceived(CameraSource cs, FrameBuffer frame) {
+            final long now = System.nanoTime();
+            mRequester.onFrameReceived();
+
+            if (mMeasuring)
+            {
+                mLatencyHistogram.record(now - CameraSimulator.readStamp(frame, mType));
+                mFrames.incrementAndGet();
+                mBytes.addAndGet(frame.length());
+            }
+
+            if (mDecoder != null)
+            {
+                mDecoder.submit(frame);
+            }
+        }
+
+        @Override
+        public void onFrameSkipped(CameraSource cs, int length) {
+            mRequester.onFrameReceived();
+            mSkipped.incrementAndGet();
+        }
+    }
+}
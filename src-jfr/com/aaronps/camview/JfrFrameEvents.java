@@ -0,0 +1,144 @@
+package com.aaronps.camview;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events, loaded by FrameEvents when jdk.jfr is available.
+ * <p>
+ * Every method creates the event and checks isEnabled() before anything
+ * else, when not recording the jit removes the allocation.
+ *
+ * @author krom
+ */
+final class JfrFrameEvents implements FrameEvents.Sink {
+
+    @Override
+    public void requestSent(final CameraSource camera, final long sequence) {
+        final RequestSent e = new RequestSent();
+        if (e.isEnabled())
+        {
+            e.camera = camera.getName();
+            e.sequence = sequence;
+            e.commit();
+        }
+    }
+
+    @Override
+    public void headerParsed(final CameraSource camera, final long sequence, final int length) {
+        final HeaderParsed e = new HeaderParsed();
+        if (e.isEnabled())
+        {
+            e.camera = camera.getName();
+            e.sequence = sequence;
+            e.length = length;
+            e.commit();
+        }
+    }
+
+    @Override
+    public void payloadComplete(final CameraSource camera, final long sequence, final int length) {
+        final PayloadComplete e = new PayloadComplete();
+        if (e.isEnabled())
+        {
+            e.camera = camera.getName();
+            e.sequence = sequence;
+            e.length = length;
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object decodeBegin(final String camera, final long sequence) {
+        final Decode e = new Decode();
+        if (!e.isEnabled())
+        {
+            return null;
+        }
+
+        e.camera = camera;
+        e.sequence = sequence;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void decodeEnd(final Object event) {
+        if (event != null)
+        {
+            ((Decode) event).commit();
+        }
+    }
+
+    @Override
+    public Object paintBegin(final String camera, final long sequence) {
+        final Painted e = new Painted();
+        if (!e.isEnabled())
+        {
+            return null;
+        }
+
+        e.camera = camera;
+        e.sequence = sequence;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void paintEnd(final Object event) {
+        if (event != null)
+        {
+            ((Painted) event).commit();
+        }
+    }
+
+    @Category("CamView")
+    @StackTrace(false)
+    static abstract class FrameEvent extends Event {
+
+        @Label("Camera")
+        String camera;
+
+        @Label("Sequence")
+        @Description("Pic request number in the connection")
+        long sequence;
+    }
+
+    @Name("com.aaronps.camview.RequestSent")
+    @Label("Pic Request Sent")
+    static final class RequestSent extends FrameEvent {
+    }
+
+    @Name("com.aaronps.camview.HeaderParsed")
+    @Label("Pic Header Parsed")
+    static final class HeaderParsed extends FrameEvent {
+
+        @Label("Length")
+        @DataAmount
+        int length;
+    }
+
+    @Name("com.aaronps.camview.PayloadComplete")
+    @Label("Pic Payload Complete")
+    static final class PayloadComplete extends FrameEvent {
+
+        @Label("Length")
+        @DataAmount
+        int length;
+    }
+
+    @Name("com.aaronps.camview.Decode")
+    @Label("Frame Decode")
+    static final class Decode extends FrameEvent {
+    }
+
+    @Name("com.aaronps.camview.Painted")
+    @Label("Frame Painted")
+    static final class Painted extends FrameEvent {
+    }
+}
@@ -0,0 +1,127 @@
+package com.aaronps.camview;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * NV21 kernel using the vector api, loaded by Nv21Converter when available.
+ * <p>
+ * For each pair of rows the chroma contributions are expanded to one value
+ * per column, then the luma of both rows is converted a whole vector at a
+ * time. Gives the same output as the scalar kernel.
+ * <p>
+ * The vectors are of the preferred shape of the cpu, with less than 256 bits
+ * (SSE, NEON) there are only 4 ints per vector and it is slower than the
+ * scalar kernel, then {@link #isSupported()} is false and Nv21Converter uses
+ * that one.
+ *
+ * @author krom
+ */
+final class VectorNv21Kernel implements Nv21Converter.Kernel {
+
+    private static final int MIN_BITS = 256;
+
+    // a vector of luma bytes widened to ints fills a whole preferred vector,
+    // so the bytes are a quarter of its size: 64 bits for 256, 128 for 512
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = INTS.vectorBitSize() < MIN_BITS
+            ? null
+            : VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.vectorBitSize() / 4));
+
+    /**
+     * Per thread chroma rows, 3 * width: red, green and blue contributions.
+     */
+    private final ThreadLocal<int[]> mChroma = new ThreadLocal<>();
+
+    /**
+     * @return false if the preferred vectors are too narrow to be faster
+     * than the scalar kernel, don't create one then.
+     */
+    static boolean isSupported() {
+        return BYTES != null;
+    }
+
+    @Override
+    public void convertRows(final byte[] src,
+                            final int srcOffset,
+                            final int[] dst,
+                            final int width,
+                            final int height,
+                            final int pair0,
+                            final int pair1) {
+        int[] chroma = mChroma.get();
+        if (chroma == null || chroma.length < width * 3)
+        {
+            chroma = new int[width * 3];
+            mChroma.set(chroma);
+        }
+
+        final int uvStart = srcOffset + width * height;
+        final int gBase = width, bBase = width * 2;
+
+        for (int p = pair0; p < pair1; p++)
+        {
+            final int row0 = p * 2 * width;
+            final int uv = uvStart + p * width;
+
+            for (int x = 0; x < width; x += 2)
+            {
+                final int v = src[uv + x] & 0xff;
+                final int u = src[uv + x + 1] & 0xff;
+
+                final int r = Nv21Converter.R_V[v];
+                final int g = (Nv21Converter.G_U[u] + Nv21Converter.G_V[v]) >> 16;
+                final int b = Nv21Converter.B_U[u];
+
+                chroma[x] = r;
+                chroma[x + 1] = r;
+                chroma[gBase + x] = g;
+                chroma[gBase + x + 1] = g;
+                chroma[bBase + x] = b;
+                chroma[bBase + x + 1] = b;
+            }
+
+            convertRow(src, srcOffset + row0, dst, row0, chroma, width);
+            convertRow(src, srcOffset + row0 + width, dst, row0 + width, chroma, width);
+        }
+    }
+
+    private static void convertRow(final byte[] src,
+                                   final int srcPos,
+                                   final int[] dst,
+                                   final int dstPos,
+                                   final int[] chroma,
+                                   final int width) {
+        final int gBase = width, bBase = width * 2;
+        final int bound = INTS.loopBound(width);
+        int x = 0;
+
+        for (; x < bound; x += INTS.length())
+        {
+            final IntVector y = ((IntVector) ByteVector.fromArray(BYTES, src, srcPos + x)
+                    .convertShape(VectorOperators.B2I, INTS, 0))
+                    .and(0xff);
+
+            final IntVector r = y.add(IntVector.fromArray(INTS, chroma, x)).max(0).min(255);
+            final IntVector g = y.sub(IntVector.fromArray(INTS, chroma, gBase + x)).max(0).min(255);
+            final IntVector b = y.add(IntVector.fromArray(INTS, chroma, bBase + x)).max(0).min(255);
+
+            r.lanewise(VectorOperators.LSHL, 16)
+                    .or(g.lanewise(VectorOperators.LSHL, 8))
+                    .or(b)
+                    .intoArray(dst, dstPos + x);
+        }
+
+        for (; x < width; x++)
+        {
+            final int y = src[srcPos + x] & 0xff;
+            final int off = Nv21Converter.CLAMP_OFFSET;
+            dst[dstPos + x] = Nv21Converter.CLAMP_R[y + chroma[x] + off]
+                    | Nv21Converter.CLAMP_G[y - chroma[gBase + x] + off]
+                    | Nv21Converter.CLAMP_B[y + chroma[bBase + x] + off];
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.aaronps.camview;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the video size of a camera instead of the operator.
+ * <p>
+ * It starts with the smallest size of the camera's list that covers the
+ * {@link CameraView}, so a small tile doesn't receive full HD frames to scale
+ * them down. Then, every few seconds, it looks at the view size and the
+ * stats: when the view grows it steps up one size at a time, as long as the
+ * bytes per second and the decode cost scaled to the bigger size stay within
+ * the budgets, when they go over the budgets it steps down, and when the
+ * view shrinks it goes down to the size that covers it. Changing the size is
+ * a StopVideo / BeginVideo cycle.
+ * <p>
+ * Call {@link #start(String[])} with the size list and {@link #onFrame()} for
+ * every frame received.
+ *
+ * @author krom
+ */
+public final class AutoResolution {
+
+    private static final Logger logger = Logger.getLogger("AutoResolution");
+
+    // how often the decision is made and how long a size is kept at least
+    private static final long SAMPLE_INTERVAL = 2000000000L;
+    private static final long HOLD_TIME = 6000000000L;
+
+    // a step up must leave this margin in the budgets, or it would step down
+    // again soon
+    private static final double HEADROOM = 0.8;
+
+    private final CameraSource mSource;
+    private final CameraView mView;
+    private final CameraStats mStats;
+
+    // guarded by "this"
+    private String[] mSizes = new String[0];
+    private int[] mWidths = new int[0];
+    private int[] mHeights = new int[0];
+    private int mCurrent = -1;
+    private double mDecodeBudget = 0.5;
+    private long mByteBudget = 0;
+    private long mChangeTime;
+    private long mSampleTime = 0;
+    private long mSampleFrames;
+    private long mSampleBytes;
+
+    /**
+     * @param source the camera
+     * @param view where it is shown, its size is the target
+     * @param stats of the camera, with the decode times recorded in them
+     */
+    public AutoResolution(final CameraSource source,
+                          final CameraView view,
+                          final CameraStats stats) {
+        mSource = source;
+        mView = view;
+        mStats = stats;
+    }
+
+    /**
+     * @param cores cpu the decoding of this camera may use, 0.5 is half a
+     * core.
+     */
+    public synchronized void setDecodeBudget(final double cores) {
+        mDecodeBudget = cores;
+    }
+
+    /**
+     * @param bytesPerSecond bandwidth this camera may use, 0 for no limit.
+     */
+    public synchronized void setByteBudget(final long bytesPerSecond) {
+        mByteBudget = bytesPerSecond;
+    }
+
+    /**
+     * Begins the video with the size that covers the view.
+     *
+     * @param sizes the camera's list, "WxH"
+     * @return the size requested, null if there was none usable.
+     */
+    public synchronized String start(final String[] sizes) throws IOException {
+        parse(sizes);
+        mCurrent = -1;
+        if (mSizes.length == 0)
+        {
+            return null;
+        }
+
+        final int index = covering();
+        mSource.request_beginvideo(mSizes[index]);
+        changed(index);
+        return mSizes[index];
+    }
+
+    /**
+     * No more decisions until started again.
+     */
+    public synchronized void stop() {
+        mCurrent = -1;
+    }
+
+    /**
+     * @return the size in use, null if not started.
+     */
+    public synchronized String getSize() {
+        return mCurrent < 0 ? null : mSizes[mCurrent];
+    }
+
+    /**
+     * Call it for every frame received, it decides once per sample interval
+     * and may change the size.
+     */
+    public synchronized void onFrame() {
+        if (mCurrent < 0)
+        {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long frames = mStats.getFramesReceived();
+        final long bytes = mStats.getBytesReceived();
+        if (mSampleTime == 0)
+        {
+            sample(now, frames, bytes);
+            return;
+        }
+
+        final long elapsed = now - mSampleTime;
+        if (elapsed < SAMPLE_INTERVAL || now - mChangeTime < HOLD_TIME)
+        {
+            return;
+        }
+
+        final double fps = (frames - mSampleFrames) * 1e9 / elapsed;
+        final double bytesPerSecond = (bytes - mSampleBytes) * 1e9 / elapsed;
+        final double decodeLoad = mStats.lastDecodeTime() * fps / 1e9;
+        sample(now, frames, bytes);
+
+        final int wanted = covering();
+        int next = mCurrent;
+        if (decodeLoad > mDecodeBudget || (mByteBudget > 0 && bytesPerSecond > mByteBudget))
+        {
+            next = Math.max(0, Math.min(wanted, mCurrent - 1));
+        }
+        else if (wanted < mCurrent)
+        {
+            next = wanted;
+        }
+        else if (wanted > mCurrent)
+        {
+            final double ratio = pixels(mCurrent + 1) / (double) pixels(mCurrent);
+            if (decodeLoad * ratio <= mDecodeBudget * HEADROOM
+                && (mByteBudget == 0 || bytesPerSecond * ratio <= mByteBudget * HEADROOM))
+            {
+                next = mCurrent + 1;
+            }
+        }
+
+        if (next != mCurrent)
+        {
+            logger.log(Level.INFO, "{0}: {1} -> {2} ({3} fps, {4} bytes/s, decode {5} cores)",
+                       new Object[] { mSource.getName(), mSizes[mCurrent], mSizes[next],
+                                      Math.round(fps), Math.round(bytesPerSecond),
+                                      String.format("%.2f", decodeLoad) });
+            try
+            {
+                mSource.request_stopvideo();
+                mSource.request_beginvideo(mSizes[next]);
+                changed(next);
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Cannot change the video size", ex);
+            }
+        }
+    }
+
+    private void changed(final int index) {
+        mCurrent = index;
+        mChangeTime = System.nanoTime();
+        mSampleTime = 0;
+    }
+
+    private void sample(final long now, final long frames, final long bytes) {
+        mSampleTime = now;
+        mSampleFrames = frames;
+        mSampleBytes = bytes;
+    }
+
+    /**
+     * @return the smallest size that fills the view in one direction at least,
+     * the view keeps the aspect so then it is not scaled up. The biggest if
+     * none does.
+     */
+    private int covering() {
+        int vw = mView.getWidth(), vh = mView.getHeight();
+        if (mView.isSideways())
+        {
+            final int t = vw;
+            vw = vh;
+            vh = t;
+        }
+
+        for (int i = 0; i < mSizes.length; i++)
+        {
+            if (mWidths[i] >= vw || mHeights[i] >= vh)
+            {
+                return i;
+            }
+        }
+        return mSizes.length - 1;
+    }
+
+    private long pixels(final int index) {
+        return (long) mWidths[index] * mHeights[index];
+    }
+
+    /**
+     * Keeps the valid sizes, from the smallest to the biggest.
+     */
+    private void parse(final String[] sizes) {
+        final String[] valid = Arrays.stream(sizes)
+                .filter(s -> s.matches("\\d+x\\d+"))
+                .distinct()
+                .sorted(Comparator.comparingLong(AutoResolution::area))
+                .toArray(String[]::new);
+
+        mSizes = valid;
+        mWidths = new int[valid.length];
+        mHeights = new int[valid.length];
+        for (int i = 0; i < valid.length; i++)
+        {
+            final int x = valid[i].indexOf('x');
+            mWidths[i] = Integer.parseInt(valid[i].substring(0, x));
+            mHeights[i] = Integer.parseInt(valid[i].substring(x + 1));
+        }
+    }
+
+    private static long area(final String size) {
+        final int x = size.indexOf('x');
+        return Long.parseLong(size.substring(0, x)) * Long.parseLong(size.substring(x + 1));
+    }
+}
@@ -0,0 +1,500 @@
+package com.aaronps.camview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection engine for many cameras: a few selector threads drive non
+ * blocking connections, instead of one blocked thread per camera.
+ * <p>
+ * Each camera keeps its own receive buffer and {@link ProtocolParser}, its
+ * listener is called from the selector thread of the camera, exactly as
+ * {@link RemoteCamera#run()} would do. Disconnected cameras are reconnected
+ * after {@link #RECONNECT_DELAY} milliseconds until removed.
+ * <p>
+ * Listeners must not block, slow work (like decoding) belongs to other
+ * threads, see FrameDecoder.
+ *
+ * @author krom
+ */
+public final class CameraEngine {
+
+    private static final Logger logger = Logger.getLogger("CameraEngine");
+
+    /**
+     * Minimum time between connection attempts of a camera.
+     */
+    public static final long RECONNECT_DELAY = 5000;
+
+    // as RemoteCamera's, holds the message lines
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private static final int SEND_BUFFER_SIZE = 4 * 1024;
+
+    private final Loop[] mLoops;
+    private int mNextLoop = 0;
+
+    /**
+     * Creates and starts the engine.
+     *
+     * @param threads number of selector threads.
+     * @throws IOException if a selector cannot be opened.
+     */
+    public CameraEngine(final int threads) throws IOException {
+        mLoops = new Loop[threads];
+        for (int n = 0; n < threads; n++)
+        {
+            mLoops[n] = new Loop(n);
+            mLoops[n].start();
+        }
+    }
+
+    /**
+     * Starts connecting the camera, its listener will be called from the
+     * engine threads.
+     */
+    public synchronized void add(final RemoteCamera camera) {
+        final Loop loop = mLoops[mNextLoop];
+        mNextLoop = (mNextLoop + 1) % mLoops.length;
+
+        final Connection c = new Connection(loop, camera);
+        camera.attach(c);
+        loop.execute(() -> loop.connect(c));
+    }
+
+    /**
+     * Disconnects the camera and stops reconnecting it. onDisconnected is
+     * called if it was connected.
+     */
+    public void remove(final RemoteCamera camera) {
+        remove(camera, null);
+    }
+
+    /**
+     * Like {@link #remove(RemoteCamera)}, counting down the latch, if not
+     * null, once removed: from then on its listener is not called anymore.
+     * Right away if it was not added.
+     */
+    public void remove(final RemoteCamera camera, final CountDownLatch removed) {
+        final Connection c = camera.attachment();
+        if (c == null)
+        {
+            if (removed != null)
+            {
+                removed.countDown();
+            }
+            return;
+        }
+
+        c.mLoop.execute(() -> {
+            c.mLoop.remove(c);
+            if (removed != null)
+            {
+                removed.countDown();
+            }
+        });
+    }
+
+    /**
+     * Stops all the threads, the cameras are disconnected without notifying
+     * their listeners.
+     */
+    public void shutdown() {
+        for (Loop loop : mLoops)
+        {
+            loop.mThread.interrupt();
+            loop.mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Per camera connection state, owned by its loop thread except for the
+     * send buffer, which is written from any thread.
+     */
+    static final class Connection {
+
+        final Loop mLoop;
+        final RemoteCamera mCamera;
+        final ProtocolParser mParser;
+        final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+
+        // guarded by "this"
+        private final ByteBuffer mSendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+        private SocketChannel mChannel;
+        private boolean mConnected = false;
+
+        SelectionKey mKey;
+        boolean mRemoved = false;
+        long mLastAttempt = 0;
+        long mReconnectAt = 0;
+        Exception mLastException;
+
+        Connection(final Loop loop, final RemoteCamera camera) {
+            mLoop = loop;
+            mCamera = camera;
+            mParser = camera.parser();
+        }
+
+        /**
+         * Sends the data without blocking, what doesn't fit in the socket now
+         * is sent when the selector says it is writable.
+         */
+        synchronized void send(final byte[] b,
+                               final int off,
+                               final int len) throws IOException {
+            if (!mConnected)
+            {
+                throw new IOException("Not connected");
+            }
+
+            if (mSendBuffer.remaining() < len)
+            {
+                throw new IOException("Send buffer full");
+            }
+
+            mSendBuffer.put(b, off, len);
+
+            if (!flush())
+            {
+                mLoop.wantWrite(this);
+            }
+        }
+
+        /**
+         * @return true if everything was sent.
+         */
+        synchronized boolean flush() throws IOException {
+            mSendBuffer.flip();
+            try
+            {
+                mChannel.write(mSendBuffer);
+                return !mSendBuffer.hasRemaining();
+            }
+            finally
+            {
+                mSendBuffer.compact();
+                mCamera.getStats().sendBacklog(mSendBuffer.position());
+            }
+        }
+
+        synchronized void open(final SocketChannel channel) {
+            mChannel = channel;
+            mSendBuffer.clear();
+        }
+
+        synchronized void setConnected() {
+            mConnected = true;
+        }
+
+        /**
+         * @return true if it was connected.
+         */
+        synchronized boolean close() {
+            final boolean wasConnected = mConnected;
+            mConnected = false;
+
+            if (mChannel != null)
+            {
+                try
+                {
+                    mChannel.close();
+                }
+                catch (IOException ex)
+                {
+                    // nothing to do
+                }
+                mChannel = null;
+            }
+
+            return wasConnected;
+        }
+    }
+
+    /**
+     * One selector thread.
+     */
+    static final class Loop implements Runnable {
+
+        private final Thread mThread;
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Connection> mReconnects = new PriorityQueue<>(
+                (a, b) -> Long.compare(a.mReconnectAt, b.mReconnectAt));
+
+        Loop(final int id) throws IOException {
+            mSelector = Selector.open();
+            mThread = new Thread(this, "CameraEngine-" + id);
+            mThread.setDaemon(true);
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        void execute(final Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        void wantWrite(final Connection c) {
+            if (Thread.currentThread() == mThread)
+            {
+                setWriteInterest(c);
+            }
+            else
+            {
+                execute(() -> setWriteInterest(c));
+            }
+        }
+
+        private void setWriteInterest(final Connection c) {
+            if (c.mKey != null && c.mKey.isValid())
+            {
+                c.mKey.interestOps(c.mKey.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        public void run() {
+            logger.info("Start");
+            try
+            {
+                while (!mThread.isInterrupted())
+                {
+                    Runnable task;
+                    while ((task = mTasks.poll()) != null)
+                    {
+                        task.run();
+                    }
+
+                    final long now = System.currentTimeMillis();
+                    while (!mReconnects.isEmpty() && mReconnects.peek().mReconnectAt <= now)
+                    {
+                        connect(mReconnects.poll());
+                    }
+
+                    final Connection next = mReconnects.peek();
+                    if (next != null)
+                    {
+                        mSelector.select(Math.max(1, next.mReconnectAt - now));
+                    }
+                    else
+                    {
+                        mSelector.select();
+                    }
+
+                    final Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                    while (it.hasNext())
+                    {
+                        final SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                }
+            }
+            catch (IOException | ClosedSelectorException e)
+            {
+                logger.log(Level.SEVERE, "Selector failed", e);
+            }
+            finally
+            {
+                for (SelectionKey key : mSelector.keys())
+                {
+                    ((Connection) key.attachment()).close();
+                }
+
+                try
+                {
+                    mSelector.close();
+                }
+                catch (IOException ex)
+                {
+                    // nothing to do
+                }
+                logger.info("End");
+            }
+        }
+
+        void connect(final Connection c) {
+            if (c.mRemoved)
+            {
+                return;
+            }
+
+            c.mLastAttempt = System.currentTimeMillis();
+            SocketChannel channel = null;
+            try
+            {
+                logger.log(Level.INFO, "Connecting to [{0}]", c.mCamera.getAddress());
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                c.open(channel);
+
+                if (channel.connect(c.mCamera.getAddress()))
+                {
+                    c.mKey = channel.register(mSelector, SelectionKey.OP_READ, c);
+                    connected(c);
+                }
+                else
+                {
+                    c.mKey = channel.register(mSelector, SelectionKey.OP_CONNECT, c);
+                }
+            }
+            catch (IOException ex)
+            {
+                failed(c, ex);
+            }
+        }
+
+        private void connected(final Connection c) {
+            logger.log(Level.INFO, "Connected to [{0}]", c.mCamera.getAddress());
+            c.mParser.reset();
+            c.mReceiveBuffer.clear();
+            c.setConnected();
+            c.mCamera.onEngineConnected();
+        }
+
+        private void handle(final SelectionKey key) {
+            final Connection c = (Connection) key.attachment();
+            try
+            {
+                if (key.isConnectable())
+                {
+                    ((SocketChannel) key.channel()).finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    connected(c);
+                }
+
+                if (key.isValid() && key.isWritable())
+                {
+                    if (c.flush())
+                    {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    }
+                }
+
+                if (key.isValid() && key.isReadable())
+                {
+                    read(c, (SocketChannel) key.channel());
+                }
+            }
+            catch (IOException ex)
+            {
+                failed(c, ex);
+            }
+            catch (RuntimeException ex)
+            {
+                // a listener failed, same as RemoteCamera: drop the connection
+                logger.log(Level.SEVERE, "Weird exception", ex);
+                failed(c, null);
+            }
+        }
+
+        /**
+         * Reads until the socket has nothing more, pic payloads go straight to
+         * their frame buffer.
+         */
+        private void read(final Connection c,
+                          final SocketChannel channel) throws IOException {
+            final ByteBuffer rb = c.mReceiveBuffer;
+            final ProtocolParser parser = c.mParser;
+
+            for (;;)
+            {
+                final ByteBuffer payload = rb.position() == 0 ? parser.payloadTarget() : null;
+                final int n;
+                if (payload != null)
+                {
+                    n = channel.read(payload);
+                    if (n > 0)
+                    {
+                        parser.payloadRead();
+                    }
+                }
+                else
+                {
+                    if (!rb.hasRemaining())
+                    {
+                        throw new IOException("Message line too long");
+                    }
+
+                    n = channel.read(rb);
+                    if (n > 0)
+                    {
+                        rb.flip();
+                        parser.parse(rb);
+                        rb.compact();
+                    }
+                }
+
+                if (n < 0)
+                {
+                    logger.log(Level.INFO, "Disconnected from [{0}]", c.mCamera.getAddress());
+                    failed(c, null);
+                    return;
+                }
+
+                if (n == 0 || c.mKey == null || !c.mKey.isValid())
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Closes the connection and schedules the reconnection.
+         */
+        private void failed(final Connection c, final IOException ex) {
+            if (ex != null)
+            {
+                if (c.mLastException != null && RemoteCamera.isSameException(ex, c.mLastException))
+                {
+                    logger.log(Level.SEVERE, "Repeat: {0}", ex.toString());
+                }
+                else
+                {
+                    c.mLastException = ex;
+                    logger.log(Level.SEVERE, ex.toString(), ex);
+                }
+            }
+
+            disconnect(c);
+
+            if (!c.mRemoved)
+            {
+                c.mReconnectAt = c.mLastAttempt + RECONNECT_DELAY;
+                mReconnects.add(c);
+            }
+        }
+
+        private void disconnect(final Connection c) {
+            if (c.mKey != null)
+            {
+                c.mKey.cancel();
+                c.mKey = null;
+            }
+            c.mParser.reset();
+
+            if (c.close())
+            {
+                c.mCamera.onEngineDisconnected();
+            }
+        }
+
+        void remove(final Connection c) {
+            c.mRemoved = true;
+            mReconnects.remove(c);
+            disconnect(c);
+            c.mCamera.attach(null);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.aaronps.camview;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.AbstractAction;
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
+/**
+ * Wall of cameras, shows many cameras at once.
+ * <p>
+ * All the connections share one {@link CameraEngine} and all the tiles share
+ * one decoder pool, each tile decodes at its on-screen size (see
+ * {@link CameraView#setDecodeToViewSize(boolean)}) so the cost depends on the
+ * displayed pixels and not on the camera resolutions.
+ * <p>
+ * The tiles request at an adaptive rate (see
+ * {@link FrameRequester#setAdaptive(boolean)}), disable it with
+ * <code>-Dcamview.adaptive=false</code>.
+ * <p>
+ * Usage: <code>CameraGridFrame host:port[:WxH] ...</code>, when no size is
+ * given it is chosen and changed with the tile size, see
+ * {@link AutoResolution}.
+ *
+ * @author krom
+ */
+public class CameraGridFrame extends JFrame {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = Logger.getLogger("CameraGridFrame");
+
+    private static final int DEFAULT_PORT = 19999;
+
+    // each tile finds the rate its camera and the host can sustain
+    private static final boolean ADAPTIVE = Boolean.parseBoolean(System.getProperty("camview.adaptive", "true"));
+
+    private final CameraEngine mEngine;
+    private final ExecutorService mDecoderPool;
+    private final List<Tile> mTiles = new ArrayList<>();
+
+    public CameraGridFrame(final String[] cameras) throws IOException {
+        super("Aremocam Wall");
+
+        mEngine = new CameraEngine(Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+        mDecoderPool = FrameDecoder.newDecoderPool(Runtime.getRuntime().availableProcessors());
+
+        final int columns = (int) Math.ceil(Math.sqrt(cameras.length));
+        final int rows = (cameras.length + columns - 1) / columns;
+        final JPanel grid = new JPanel(new GridLayout(rows, columns, 2, 2));
+        grid.setBackground(Color.BLACK);
+
+        for (String spec : cameras)
+        {
+            final Tile tile = new Tile(spec);
+            mTiles.add(tile);
+            grid.add(tile.mPanel);
+        }
+
+        // the tiles share the cpu left for decoding
+        final double decodeBudget = Runtime.getRuntime().availableProcessors() * 0.75 / cameras.length;
+        for (Tile tile : mTiles)
+        {
+            tile.mAutoResolution.setDecodeBudget(decodeBudget);
+        }
+
+        setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+        getContentPane().add(grid);
+        setSize(Math.min(1600, columns * 320), Math.min(1000, rows * 260));
+
+        // F2 shows and hides the numbers of all the cameras
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+                .put(KeyStroke.getKeyStroke(KeyEvent.VK_F2, 0), "overlay-toggle");
+        getRootPane().getActionMap().put("overlay-toggle", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                for (Tile tile : mTiles)
+                {
+                    tile.mView.setOverlayVisible(!tile.mView.isOverlayVisible());
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts connecting all the cameras.
+     */
+    public void start() {
+        for (Tile tile : mTiles)
+        {
+            mEngine.add(tile.mCamera);
+        }
+    }
+
+    /**
+     * One camera of the wall.
+     */
+    private final class Tile implements RemoteCamera.Listener {
+
+        private final String mName;
+        private final String mSize;
+        private final JPanel mPanel = new JPanel(new BorderLayout());
+        private final JLabel mLabel = new JLabel();
+        private final CameraView mView = new CameraView();
+        private final FrameDecoder mDecoder;
+        private final RemoteCamera mCamera;
+        private final FrameRequester mRequester;
+        private final AutoResolution mAutoResolution;
+
+        Tile(final String spec) {
+            final String[] parts = spec.split(":");
+            final String host = parts[0];
+            final int port = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_PORT;
+
+            mName = host + ":" + port;
+            mSize = parts.length > 2 ? parts[2] : null;
+
+            mView.setDecodeToViewSize(true);
+            mDecoder = new FrameDecoder(mView, mDecoderPool);
+            mCamera = new RemoteCamera(this, host, port);
+            mRequester = new FrameRequester(mCamera);
+            mRequester.setWindow(FrameRequester.AUTO_WINDOW);
+
+            final CameraStats stats = mCamera.getStats();
+            stats.register(mName);
+            mRequester.setStats(stats);
+            if (ADAPTIVE)
+            {
+                mRequester.setMinDelay(0);
+                mRequester.setAdaptive(true);
+            }
+            mDecoder.setStats(stats);
+            mView.setStats(stats);
+
+            mAutoResolution = new AutoResolution(mCamera, mView, stats);
+
+            mLabel.setText(mName);
+            mLabel.setForeground(Color.LIGHT_GRAY);
+            mPanel.setBackground(Color.BLACK);
+            mPanel.setBorder(BorderFactory.createEmptyBorder(2, 2, 2, 2));
+            mPanel.add(mView, BorderLayout.CENTER);
+            mPanel.add(mLabel, BorderLayout.SOUTH);
+        }
+
+        @Override
+        public void onConnected(CameraSource rc) {
+            mRequester.resume();
+            try
+            {
+                rc.request_sizelist();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Just connected but cannot request things... then?", ex);
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraSource rc) {
+            mRequester.pause();
+            mAutoResolution.stop();
+            mDecoder.clear();
+            SwingUtilities.invokeLater(() -> {
+                mLabel.setText(mName + " (disconnected)");
+                mView.reset();
+                mView.repaint();
+            });
+        }
+
+        @Override
+        public void onVideoReady(CameraSource rc, CameraInfo info) {
+            mView.setVideoInfo(info);
+            SwingUtilities.invokeLater(() -> mLabel.setText(mName + " " + info.width + "x" + info.height));
+            mRequester.reset();
+            mRequester.request_pic();
+        }
+
+        @Override
+        public void onSizeListReceived(CameraSource rc, String[] sizes) {
+            logger.log(Level.INFO, "{0} sizes: {1}", new Object[] { mName, Arrays.toString(sizes) });
+            if (sizes.length == 0)
+            {
+                return;
+            }
+
+            try
+            {
+                if (mSize != null)
+                {
+                    rc.request_beginvideo(mSize);
+                }
+                else
+                {
+                    mAutoResolution.start(sizes);
+                }
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Couldn't request begin video... what to do now?", ex);
+            }
+        }
+
+        @Override
+        public void onFrameReceived(CameraSource rc, FrameBuffer frame) {
+            mRequester.onFrameReceived();
+            mDecoder.submit(frame);
+            mAutoResolution.onFrame();
+        }
+
+        @Override
+        public void onFrameSkipped(CameraSource rc, int length) {
+            mRequester.onFrameReceived();
+        }
+    }
+
+    /**
+     * @param args the cameras, host:port[:WxH]
+     */
+    public static void main(String args[]) {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS | %4$s %3$s: %5$s %6$s%n");
+
+        if (args.length == 0)
+        {
+            System.err.println("Usage: CameraGridFrame host:port[:WxH] ...");
+            System.exit(1);
+        }
+
+        java.awt.EventQueue.invokeLater(() -> {
+            try
+            {
+                final CameraGridFrame frame = new CameraGridFrame(args);
+                frame.setVisible(true);
+                frame.start();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Cannot start", ex);
+                System.exit(1);
+            }
+        });
+    }
+}
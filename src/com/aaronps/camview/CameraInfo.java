@@ -11,6 +11,17 @@ package com.aaronps.camview;
  */
 public class CameraInfo
 {
+    /**
+     * Raw frames, width * height * 3 / 2 bytes, same value as android's
+     * ImageFormat.NV21.
+     */
+    public static final int TYPE_NV21 = 17;
+
+    /**
+     * Jpeg frames, same value as android's ImageFormat.JPEG.
+     */
+    public static final int TYPE_JPEG = 256;
+
     public int width;
     public int height;
     public int type;
@@ -0,0 +1,706 @@
+package com.aaronps.camview;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Fake aremocam cameras for load testing, speaks the same protocol as the
+ * phone: SizeList, BeginVideo, StopVideo and Pic requests, answered with
+ * SizeList, Ready and Pic messages.
+ * <p>
+ * Each camera listens on its own port, many cameras (and their clients) are
+ * served by a few selector threads. The frames are synthetic, jpeg or nv21,
+ * generated once per size and shared by all the cameras. Pics are answered
+ * no faster than the configured rate and not before the configured latency
+ * since they were requested.
+ * <p>
+ * Every frame carries the {@link System#nanoTime()} of when it was sent, see
+ * {@link #readStamp(FrameBuffer, int)}, it is only meaningful for a client in
+ * the same process. In jpeg frames it is a comment segment right after the
+ * start of image, in nv21 frames it replaces the first 8 luma bytes.
+ * <p>
+ * Usage: <code>CameraSimulator [-port first] [-count n] [-threads n]
+ * [-sizes WxH,...] [-type jpeg|nv21] [-fps n] [-latency ms]</code>
+ *
+ * @author krom
+ */
+public final class CameraSimulator {
+
+    private static final Logger logger = Logger.getLogger("CameraSimulator");
+
+    /**
+     * Where the send time is in a jpeg frame: after SOI, the COM marker and
+     * its length.
+     */
+    public static final int STAMP_OFFSET_JPEG = 6;
+    public static final int STAMP_OFFSET_NV21 = 0;
+
+    // different frames per size, so the content moves
+    private static final int FRAME_VARIANTS = 8;
+
+    // request arrival times remembered per client, more pipelined pics than
+    // this are answered without latency accounting.
+    private static final int MAX_PENDING = 64;
+
+    private final Loop[] mLoops;
+    private int mNextLoop = 0;
+
+    private volatile String[] mSizes = { "640x480", "320x240", "1280x720" };
+    private volatile int mType = CameraInfo.TYPE_JPEG;
+    private volatile int mFps = 15;
+    private volatile long mLatencyNanos = 0;
+
+    // size and type -> frames, filled on demand
+    private final Map<String, ByteBuffer[]> mFrames = new HashMap<>();
+
+    private final AtomicLong mFramesSent = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    public CameraSimulator(final int threads) throws IOException {
+        mLoops = new Loop[threads];
+        for (int n = 0; n < threads; n++)
+        {
+            mLoops[n] = new Loop(n);
+            mLoops[n].mThread.start();
+        }
+    }
+
+    /**
+     * @param sizes as sent in the size list, WxH.
+     */
+    public void setSizes(final String... sizes) {
+        mSizes = sizes.clone();
+    }
+
+    /**
+     * @param type CameraInfo.TYPE_JPEG or CameraInfo.TYPE_NV21
+     */
+    public void setType(final int type) {
+        mType = type;
+    }
+
+    /**
+     * @param fps maximum pics per second of each client, 0 for no limit.
+     */
+    public void setFps(final int fps) {
+        mFps = fps;
+    }
+
+    /**
+     * @param millis minimum time between a pic request and its answer.
+     */
+    public void setLatency(final long millis) {
+        mLatencyNanos = millis * 1000000L;
+    }
+
+    /**
+     * Starts listening, one camera per port.
+     */
+    public synchronized void listen(final int firstPort, final int count) throws IOException {
+        for (int port = firstPort; port < firstPort + count; port++)
+        {
+            final ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress("127.0.0.1", port), 64);
+            server.configureBlocking(false);
+
+            final Loop loop = mLoops[mNextLoop];
+            mNextLoop = (mNextLoop + 1) % mLoops.length;
+            loop.execute(() -> loop.register(server));
+        }
+    }
+
+    public void shutdown() {
+        for (Loop loop : mLoops)
+        {
+            loop.mThread.interrupt();
+            loop.mSelector.wakeup();
+        }
+    }
+
+    public long getFramesSent() {
+        return mFramesSent.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * @return the send time stamped in the frame by a simulator, see the class
+     * documentation.
+     */
+    public static long readStamp(final FrameBuffer frame, final int type) {
+        final int offset = type == CameraInfo.TYPE_NV21 ? STAMP_OFFSET_NV21 : STAMP_OFFSET_JPEG;
+        return frame.asByteBuffer().getLong(offset);
+    }
+
+    private ByteBuffer[] frames(final int width, final int height, final int type) throws IOException {
+        final String key = width + "x" + height + ":" + type;
+        synchronized (mFrames)
+        {
+            ByteBuffer[] frames = mFrames.get(key);
+            if (frames == null)
+            {
+                frames = new ByteBuffer[FRAME_VARIANTS];
+                for (int n = 0; n < FRAME_VARIANTS; n++)
+                {
+                    final byte[] data = type == CameraInfo.TYPE_NV21
+                                        ? nv21Frame(width, height, n)
+                                        : jpegFrame(width, height, n);
+                    frames[n] = ByteBuffer.allocateDirect(data.length);
+                    frames[n].put(data).flip();
+                }
+                mFrames.put(key, frames);
+            }
+            return frames;
+        }
+    }
+
+    private static byte[] jpegFrame(final int width,
+                                    final int height,
+                                    final int variant) throws IOException {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, width, height, Color.ORANGE));
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.WHITE);
+        final int bar = width / FRAME_VARIANTS;
+        g.fillRect(variant * bar, 0, bar, height);
+        g.dispose();
+
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", jpeg);
+        final byte[] plain = jpeg.toByteArray();
+
+        // SOI, COM with room for the stamp, the rest.
+        final byte[] data = new byte[plain.length + 12];
+        data[0] = (byte) 0xff;
+        data[1] = (byte) 0xd8;
+        data[2] = (byte) 0xff;
+        data[3] = (byte) 0xfe;
+        data[4] = 0;
+        data[5] = 10;
+        System.arraycopy(plain, 2, data, STAMP_OFFSET_JPEG + 8, plain.length - 2);
+        return data;
+    }
+
+    private static byte[] nv21Frame(final int width,
+                                    final int height,
+                                    final int variant) {
+        final byte[] data = new byte[width * height * 3 / 2];
+        final int shift = variant * width / FRAME_VARIANTS;
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                data[y * width + x] = (byte) (((x + shift) * 255 / width + y) & 0xff);
+            }
+        }
+        for (int i = width * height; i < data.length; i += 2)
+        {
+            data[i] = (byte) (128 + variant * 8);
+            data[i + 1] = (byte) (128 - variant * 8);
+        }
+        return data;
+    }
+
+    /**
+     * One client connection.
+     */
+    private final class Client {
+
+        final SocketChannel mChannel;
+        final ByteBuffer mReceive = ByteBuffer.allocate(256);
+        SelectionKey mKey;
+
+        boolean mStreaming = false;
+        int mWidth;
+        int mHeight;
+        int mStampOffset;
+        int mVariant = 0;
+
+        // views of the shared frames: before the stamp and after it
+        final ByteBuffer[] mHeads = new ByteBuffer[FRAME_VARIANTS];
+        final ByteBuffer[] mBodies = new ByteBuffer[FRAME_VARIANTS];
+
+        // pic requests not answered yet, arrival times in a ring
+        final long[] mRequestTimes = new long[MAX_PENDING];
+        int mRequestHead = 0;
+        int mPending = 0;
+        long mLastSent = 0;
+        long mDueAt = 0;
+        boolean mScheduled = false;
+
+        // the pic being sent
+        final ByteBuffer mHeader = ByteBuffer.allocate(32);
+        final ByteBuffer mStamp = ByteBuffer.allocate(8);
+        final ByteBuffer[] mGather = new ByteBuffer[4];
+        boolean mSending = false;
+
+        // other messages, sent after the pic, write mode
+        final ByteBuffer mOut = ByteBuffer.allocate(4096);
+
+        Client(final SocketChannel channel) {
+            mChannel = channel;
+        }
+    }
+
+    /**
+     * One selector thread, owns some cameras and their clients.
+     */
+    private final class Loop implements Runnable {
+
+        final Thread mThread;
+        final Selector mSelector;
+        final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        final PriorityQueue<Client> mDue = new PriorityQueue<>(
+                (a, b) -> Long.compare(a.mDueAt, b.mDueAt));
+        final List<ServerSocketChannel> mServers = new ArrayList<>();
+
+        Loop(final int id) throws IOException {
+            mSelector = Selector.open();
+            mThread = new Thread(this, "CameraSimulator-" + id);
+            mThread.setDaemon(true);
+        }
+
+        void execute(final Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        void register(final ServerSocketChannel server) {
+            try
+            {
+                server.register(mSelector, SelectionKey.OP_ACCEPT);
+                mServers.add(server);
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Cannot listen", ex);
+            }
+        }
+
+        @Override
+        public void run() {
+            try
+            {
+                while (!mThread.isInterrupted())
+                {
+                    Runnable task;
+                    while ((task = mTasks.poll()) != null)
+                    {
+                        task.run();
+                    }
+
+                    long now = System.nanoTime();
+                    while (!mDue.isEmpty() && mDue.peek().mDueAt <= now)
+                    {
+                        final Client c = mDue.poll();
+                        c.mScheduled = false;
+                        answer(c, now);
+                    }
+
+                    final Client next = mDue.peek();
+                    if (next != null)
+                    {
+                        final long wait = (next.mDueAt - now) / 1000000L;
+                        if (wait > 0)
+                        {
+                            mSelector.select(wait);
+                        }
+                        else
+                        {
+                            mSelector.selectNow();
+                        }
+                    }
+                    else
+                    {
+                        mSelector.select();
+                    }
+
+                    final Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                    while (it.hasNext())
+                    {
+                        final SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                }
+            }
+            catch (IOException | ClosedSelectorException e)
+            {
+                logger.log(Level.SEVERE, "Selector failed", e);
+            }
+            finally
+            {
+                for (SelectionKey key : mSelector.keys())
+                {
+                    try
+                    {
+                        key.channel().close();
+                    }
+                    catch (IOException ex)
+                    {
+                        // nothing to do
+                    }
+                }
+
+                try
+                {
+                    mSelector.close();
+                }
+                catch (IOException ex)
+                {
+                    // nothing to do
+                }
+            }
+        }
+
+        private void handle(final SelectionKey key) {
+            if (key.isAcceptable())
+            {
+                accept((ServerSocketChannel) key.channel());
+                return;
+            }
+
+            final Client c = (Client) key.attachment();
+            try
+            {
+                if (key.isWritable())
+                {
+                    write(c);
+                }
+
+                if (key.isValid() && key.isReadable())
+                {
+                    read(c);
+                }
+            }
+            catch (IOException ex)
+            {
+                close(c);
+            }
+        }
+
+        private void accept(final ServerSocketChannel server) {
+            try
+            {
+                final SocketChannel channel = server.accept();
+                if (channel == null)
+                {
+                    return;
+                }
+
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                final Client c = new Client(channel);
+                c.mKey = channel.register(mSelector, SelectionKey.OP_READ, c);
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.WARNING, "Accept failed", ex);
+            }
+        }
+
+        private void close(final Client c) {
+            c.mKey.cancel();
+            mDue.remove(c);
+            try
+            {
+                c.mChannel.close();
+            }
+            catch (IOException ex)
+            {
+                // nothing to do
+            }
+        }
+
+        private void read(final Client c) throws IOException {
+            final ByteBuffer rb = c.mReceive;
+            final int n = c.mChannel.read(rb);
+            if (n < 0)
+            {
+                close(c);
+                return;
+            }
+
+            rb.flip();
+            final byte[] array = rb.array();
+            int start = rb.position();
+            for (int i = start; i < rb.limit(); i++)
+            {
+                if (array[i] == '\n')
+                {
+                    command(c, new String(array, start, i - start, StandardCharsets.US_ASCII));
+                    start = i + 1;
+                }
+            }
+            rb.position(start);
+            rb.compact();
+
+            if (!rb.hasRemaining())
+            {
+                throw new IOException("Request too long");
+            }
+        }
+
+        private void command(final Client c, final String line) throws IOException {
+            if (line.equals("Pic"))
+            {
+                final long now = System.nanoTime();
+                if (c.mPending < MAX_PENDING)
+                {
+                    c.mRequestTimes[(c.mRequestHead + c.mPending) % MAX_PENDING] = now;
+                }
+                c.mPending++;
+                schedule(c, now);
+            }
+            else if (line.equals("SizeList"))
+            {
+                send(c, "SizeList " + String.join(" ", mSizes) + "\n");
+            }
+            else if (line.startsWith("BeginVideo "))
+            {
+                final String[] wh = line.substring("BeginVideo ".length()).trim().split("x");
+                final int type = mType;
+                c.mWidth = Integer.parseInt(wh[0]);
+                c.mHeight = Integer.parseInt(wh[1]);
+                c.mStampOffset = type == CameraInfo.TYPE_NV21 ? STAMP_OFFSET_NV21 : STAMP_OFFSET_JPEG;
+
+                final ByteBuffer[] frames = frames(c.mWidth, c.mHeight, type);
+                for (int n = 0; n < FRAME_VARIANTS; n++)
+                {
+                    c.mHeads[n] = frames[n].duplicate();
+                    c.mBodies[n] = frames[n].duplicate();
+                }
+                c.mStreaming = true;
+                send(c, "Ready " + c.mWidth + " " + c.mHeight + " " + type + "\n");
+            }
+            else if (line.equals("StopVideo"))
+            {
+                c.mStreaming = false;
+            }
+            else
+            {
+                logger.log(Level.INFO, "Unknown request: [{0}]", line);
+            }
+        }
+
+        /**
+         * Computes when the next pending pic can be answered.
+         */
+        private void schedule(final Client c, final long now) {
+            if (c.mScheduled || c.mSending || c.mOut.position() > 0 || c.mPending == 0)
+            {
+                return;
+            }
+
+            final int fps = mFps;
+            long due = now;
+            if (c.mPending <= MAX_PENDING)
+            {
+                due = Math.max(due, c.mRequestTimes[c.mRequestHead] + mLatencyNanos);
+            }
+            if (fps > 0)
+            {
+                due = Math.max(due, c.mLastSent + 1000000000L / fps);
+            }
+
+            c.mDueAt = due;
+            c.mScheduled = true;
+            mDue.add(c);
+        }
+
+        private void answer(final Client c, final long now) {
+            c.mPending--;
+            c.mRequestHead = (c.mRequestHead + 1) % MAX_PENDING;
+            c.mLastSent = now;
+
+            try
+            {
+                if (!c.mStreaming)
+                {
+                    send(c, "Pic 0\n");
+                }
+                else
+                {
+                    final ByteBuffer head = c.mHeads[c.mVariant];
+                    final ByteBuffer body = c.mBodies[c.mVariant];
+                    c.mVariant = (c.mVariant + 1) % FRAME_VARIANTS;
+
+                    final int length = body.capacity();
+                    head.limit(c.mStampOffset).position(0);
+                    body.limit(length).position(c.mStampOffset + 8);
+
+                    c.mHeader.clear();
+                    c.mHeader.put(RemoteCamera.Protocol.MSG_PIC).put((byte) ' ');
+                    putDecimal(c.mHeader, length);
+                    c.mHeader.put((byte) '\n').flip();
+
+                    c.mStamp.clear();
+                    c.mStamp.putLong(System.nanoTime()).flip();
+
+                    c.mGather[0] = c.mHeader;
+                    c.mGather[1] = head;
+                    c.mGather[2] = c.mStamp;
+                    c.mGather[3] = body;
+                    c.mSending = true;
+
+                    mFramesSent.incrementAndGet();
+                    mBytesSent.addAndGet(c.mHeader.remaining() + length);
+                    write(c);
+                }
+            }
+            catch (IOException ex)
+            {
+                close(c);
+            }
+        }
+
+        /**
+         * Queues a message, it goes after the pic being sent, if any.
+         */
+        private void send(final Client c, final String message) throws IOException {
+            c.mOut.put(message.getBytes(StandardCharsets.US_ASCII));
+            if (!c.mSending)
+            {
+                write(c);
+            }
+        }
+
+        private void write(final Client c) throws IOException {
+            if (c.mSending)
+            {
+                c.mChannel.write(c.mGather);
+                if (c.mGather[3].hasRemaining())
+                {
+                    c.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                c.mSending = false;
+            }
+
+            if (c.mOut.position() > 0)
+            {
+                c.mOut.flip();
+                c.mChannel.write(c.mOut);
+                c.mOut.compact();
+                if (c.mOut.position() > 0)
+                {
+                    c.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            c.mKey.interestOps(SelectionKey.OP_READ);
+            schedule(c, System.nanoTime());
+        }
+    }
+
+    private static void putDecimal(final ByteBuffer bb, final int value) {
+        int div = 1;
+        while (div <= value / 10)
+        {
+            div *= 10;
+        }
+
+        for (; div > 0; div /= 10)
+        {
+            bb.put((byte) ('0' + (value / div) % 10));
+        }
+    }
+
+    /**
+     * @param args see class documentation
+     */
+    public static void main(String args[]) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS | %4$s %3$s: %5$s %6$s%n");
+
+        int port = 19999;
+        int count = 1;
+        int threads = 1;
+        String[] sizes = null;
+        int type = CameraInfo.TYPE_JPEG;
+        int fps = 15;
+        long latency = 0;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-count":
+                    count = Integer.parseInt(args[++i]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-sizes":
+                    sizes = args[++i].split(",");
+                    break;
+                case "-type":
+                    type = args[++i].equals("nv21") ? CameraInfo.TYPE_NV21 : CameraInfo.TYPE_JPEG;
+                    break;
+                case "-fps":
+                    fps = Integer.parseInt(args[++i]);
+                    break;
+                case "-latency":
+                    latency = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: CameraSimulator [-port first] [-count n] [-threads n] "
+                                       + "[-sizes WxH,...] [-type jpeg|nv21] [-fps n] [-latency ms]");
+                    System.exit(1);
+            }
+        }
+
+        final CameraSimulator simulator = new CameraSimulator(threads);
+        if (sizes != null)
+        {
+            simulator.setSizes(sizes);
+        }
+        simulator.setType(type);
+        simulator.setFps(fps);
+        simulator.setLatency(latency);
+        simulator.listen(port, count);
+        logger.log(Level.INFO, "{0} cameras on ports {1} to {2}",
+                   new Object[] { count, Integer.toString(port), Integer.toString(port + count - 1) });
+
+        long lastFrames = 0, lastBytes = 0;
+        for (;;)
+        {
+            Thread.sleep(5000);
+            final long frames = simulator.getFramesSent(), bytes = simulator.getBytesSent();
+            logger.log(Level.INFO, "{0} fps, {1} KB/s",
+                       new Object[] { (frames - lastFrames) / 5, (bytes - lastBytes) / 5 / 1024 });
+            lastFrames = frames;
+            lastBytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.aaronps.camview;
+
+import java.io.IOException;
+
+/**
+ * Something that answers the camera requests, a {@link RemoteCamera} or a
+ * {@link PlaybackCamera}. The answers arrive to a
+ * {@link RemoteCamera.Listener}.
+ *
+ * @author krom
+ */
+public interface CameraSource {
+
+    /**
+     * @return a short name for logs and events, like host:port.
+     */
+    String getName();
+
+    void request_pic() throws IOException;
+
+    void request_sizelist() throws IOException;
+
+    void request_beginvideo(final String size) throws IOException;
+
+    void request_stopvideo() throws IOException;
+}
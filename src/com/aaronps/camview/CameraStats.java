@@ -0,0 +1,282 @@
+package com.aaronps.camview;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Health of one camera stream, published as an MBean so it can be watched
+ * with jconsole or any JMX tool.
+ * <p>
+ * Each {@link RemoteCamera} has one, the requester, decoder and view of the
+ * camera record into it too when given with their setStats. Recording is
+ * made of atomic increments and volatile writes, no locks and no allocation,
+ * only reading it (from JMX) does more.
+ *
+ * @author krom
+ */
+public final class CameraStats implements CameraStatsMBean {
+
+    private static final Logger logger = Logger.getLogger("CameraStats");
+
+    private static final String DOMAIN = "com.aaronps.camview";
+
+    private final AtomicLong mConnections = new AtomicLong();
+    private volatile boolean mConnected = false;
+
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mDecoded = new AtomicLong();
+    private volatile int mInFlight = 0;
+    private volatile int mSendBacklog = 0;
+
+    // the latest of each, for the overlay
+    private volatile long mLastRoundTrip = 0;
+    private volatile long mLastDecodeTime = 0;
+
+    private final Histogram mRoundTrip = new Histogram();
+    private final Histogram mDecodeTime = new Histogram();
+    private final Histogram mPaintTime = new Histogram();
+
+    // last read of the rates, guarded by "this"
+    private long mRateTime = System.nanoTime();
+    private long mRateFrames = 0;
+    private long mRateBytes = 0;
+    private double mFramesPerSecond = 0;
+    private double mBytesPerSecond = 0;
+
+    private ObjectName mName;
+
+    /**
+     * Publishes it in the platform MBean server.
+     *
+     * @param name of the camera, like host:port.
+     */
+    public synchronized void register(final String name) {
+        unregister();
+        try
+        {
+            final ObjectName on = new ObjectName(DOMAIN + ":type=Camera,name=" + ObjectName.quote(name));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(on))
+            {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(this, on);
+            mName = on;
+        }
+        catch (JMException ex)
+        {
+            logger.log(Level.WARNING, "Cannot register the stats of " + name, ex);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (mName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mName);
+            }
+            catch (JMException ex)
+            {
+                logger.log(Level.FINE, "Cannot unregister " + mName, ex);
+            }
+            mName = null;
+        }
+    }
+
+    // recording, from any thread
+
+    void connected() {
+        mConnections.incrementAndGet();
+        mConnected = true;
+    }
+
+    void disconnected() {
+        mConnected = false;
+    }
+
+    void frameReceived(final int length) {
+        mFrames.incrementAndGet();
+        mBytes.addAndGet(length);
+    }
+
+    void frameSkipped() {
+        mSkipped.incrementAndGet();
+    }
+
+    void frameDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    void requestsInFlight(final int inFlight) {
+        mInFlight = inFlight;
+    }
+
+    void sendBacklog(final int bytes) {
+        mSendBacklog = bytes;
+    }
+
+    void roundTrip(final long nanos) {
+        mRoundTrip.record(nanos);
+        mLastRoundTrip = nanos;
+    }
+
+    void decoded(final long nanos) {
+        mDecoded.incrementAndGet();
+        mDecodeTime.record(nanos);
+        mLastDecodeTime = nanos;
+    }
+
+    /**
+     * @return the last round trip in nanoseconds, 0 if none yet.
+     */
+    long lastRoundTrip() {
+        return mLastRoundTrip;
+    }
+
+    /**
+     * @return the last decode time in nanoseconds, 0 if none yet.
+     */
+    long lastDecodeTime() {
+        return mLastDecodeTime;
+    }
+
+    void painted(final long nanos) {
+        mPaintTime.record(nanos);
+    }
+
+    // MBean
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public long getReconnects() {
+        return Math.max(0, mConnections.get() - 1);
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return mFrames.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return mBytes.get();
+    }
+
+    @Override
+    public synchronized double getFramesPerSecond() {
+        updateRates();
+        return mFramesPerSecond;
+    }
+
+    @Override
+    public synchronized double getBytesPerSecond() {
+        updateRates();
+        return mBytesPerSecond;
+    }
+
+    @Override
+    public int getRequestsInFlight() {
+        return mInFlight;
+    }
+
+    @Override
+    public int getSendBacklog() {
+        return mSendBacklog;
+    }
+
+    @Override
+    public long getFramesSkipped() {
+        return mSkipped.get();
+    }
+
+    @Override
+    public long getFramesDropped() {
+        return mDropped.get();
+    }
+
+    @Override
+    public long getFramesDecoded() {
+        return mDecoded.get();
+    }
+
+    @Override
+    public long getRoundTripP50() {
+        return mRoundTrip.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getRoundTripP99() {
+        return mRoundTrip.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getRoundTripMax() {
+        return mRoundTrip.getPercentile(1) / 1000;
+    }
+
+    @Override
+    public long getDecodeTimeP50() {
+        return mDecodeTime.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getDecodeTimeP99() {
+        return mDecodeTime.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getDecodeTimeMax() {
+        return mDecodeTime.getPercentile(1) / 1000;
+    }
+
+    @Override
+    public long getPaintTimeP50() {
+        return mPaintTime.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getPaintTimeP99() {
+        return mPaintTime.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getPaintTimeMax() {
+        return mPaintTime.getPercentile(1) / 1000;
+    }
+
+    @Override
+    public void resetHistograms() {
+        mRoundTrip.reset();
+        mDecodeTime.reset();
+        mPaintTime.reset();
+    }
+
+    private void updateRates() {
+        final long now = System.nanoTime();
+        final long elapsed = now - mRateTime;
+        if (elapsed < 1000000000L)
+        {
+            return;
+        }
+
+        final long frames = mFrames.get(), bytes = mBytes.get();
+        mFramesPerSecond = (frames - mRateFrames) * 1e9 / elapsed;
+        mBytesPerSecond = (bytes - mRateBytes) * 1e9 / elapsed;
+        mRateTime = now;
+        mRateFrames = frames;
+        mRateBytes = bytes;
+    }
+}
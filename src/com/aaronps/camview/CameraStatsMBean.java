@@ -0,0 +1,56 @@
+package com.aaronps.camview;
+
+/**
+ * JMX view of {@link CameraStats}. Rates are since the previous read (or the
+ * start), at least over one second. Times are in microseconds, from
+ * histograms accumulated since the start or the last resetHistograms.
+ *
+ * @author krom
+ */
+public interface CameraStatsMBean {
+
+    boolean isConnected();
+
+    long getReconnects();
+
+    long getFramesReceived();
+
+    long getBytesReceived();
+
+    double getFramesPerSecond();
+
+    double getBytesPerSecond();
+
+    int getRequestsInFlight();
+
+    /**
+     * @return bytes of requests waiting to be written to the socket.
+     */
+    int getSendBacklog();
+
+    long getFramesSkipped();
+
+    long getFramesDropped();
+
+    long getFramesDecoded();
+
+    long getRoundTripP50();
+
+    long getRoundTripP99();
+
+    long getRoundTripMax();
+
+    long getDecodeTimeP50();
+
+    long getDecodeTimeP99();
+
+    long getDecodeTimeMax();
+
+    long getPaintTimeP50();
+
+    long getPaintTimeP99();
+
+    long getPaintTimeMax();
+
+    void resetHistograms();
+}
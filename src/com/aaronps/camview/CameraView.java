@@ -7,14 +7,16 @@ package com.aaronps.camview;
 
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 import javax.swing.JComponent;
 
 /**
@@ -26,11 +28,76 @@ public class CameraView extends JComponent {
     static final private int DEFAULT_WIDTH = 320;
     static final private int DEFAULT_HEIGHT = 240;
 
-    private BufferedImage mImage;
-    private double mRotation = 0;
+    // set from the decoder threads, read on paint. The version changes with
+    // every frame, the images are reused so the reference is not enough.
+    private volatile BufferedImage mImage;
+    private final AtomicInteger mImageVersion = new AtomicInteger();
+
+    // the image paint is copying into the render cache. The decoders write
+    // into an image that is neither this one nor mImage, which paint may
+    // start copying any time, so a frame is never drawn half overwritten.
+    // Taking mImage and marking it are atomic under the lock, see
+    // updateRenderCache.
+    private final Object mImageLock = new Object();
+    private BufferedImage mPainting;
+
+    // the default pattern, the decoder images are not drawn on
+    private BufferedImage mPattern;
+
+    // quarter turns, clockwise
+    private volatile int mQuadrant = 0;
+
+    // the image already scaled and rotated, painting is just drawing it at
+    // mRenderX, mRenderY. Swing thread only.
+    private BufferedImage mRenderCache;
+    private BufferedImage mRenderSource;
+    private int mRenderVersion;
+    private int mRenderWidth;
+    private int mRenderHeight;
+    private int mRenderQuadrant;
+    private int mRenderX;
+    private int mRenderY;
 
     private int[] mBuffer;
 
+    // video format as told by the camera, set before frames arrive.
+    private volatile int mVideoType = CameraInfo.TYPE_JPEG;
+    private volatile int mVideoWidth;
+    private volatile int mVideoHeight;
+
+    // raw frames are converted into these to avoid allocations, three so
+    // there is always one free: the shown, the painted and the next one.
+    private final BufferedImage[] mRawImages = new BufferedImage[3];
+
+    // jpeg frames, decoder thread only, created with the first one
+    private JpegDecoder mJpegDecoder;
+
+    // decode only the pixels needed for the current component size
+    private volatile boolean mDecodeToViewSize = false;
+
+    // digital zoom, x, y, width and height as fractions of the frame so it
+    // survives size changes, null for the whole frame. Replaced, not
+    // modified.
+    private volatile double[] mZoom;
+
+    // the part of the frame being decoded, decoder thread only
+    private final Rectangle mRegion = new Rectangle();
+
+    // time shift, while not live the frames come from the ring.
+    private volatile boolean mLive = true;
+    private FrameRing mFrameRing;
+    private FrameDecoder mTimeShiftDecoder;
+    private long mScrubSequence;
+
+    private volatile CameraStats mStats;
+
+    // origin of the last decoded frame, for the paint events
+    private volatile String mFrameCamera;
+    private volatile long mFrameSequence;
+
+    private final PerfOverlay mOverlay = new PerfOverlay();
+    private volatile boolean mOverlayVisible = false;
+
     public CameraView() {
         reset();
     }
@@ -40,17 +107,114 @@ public class CameraView extends JComponent {
         // keep drawDefaultPattern here, setImageSize will only draw the patter
         // if the size is different, it might be possible the size is the same
         // so it was not drawn.
-        drawDefaultPattern();
+        drawDefaultPattern(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+    }
+
+    /**
+     * @param stats where to record the paint times.
+     */
+    final public void setStats(final CameraStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Shows or hides the numbers of the camera (fps, decode time, round
+     * trip...) over the image, they come from the stats given to setStats.
+     */
+    final public void setOverlayVisible(final boolean visible) {
+        mOverlayVisible = visible;
+        repaint();
+    }
+
+    final public boolean isOverlayVisible() {
+        return mOverlayVisible;
     }
 
     @Override
     final public void paint(Graphics g) {
+        final long start = System.nanoTime();
+        final Object event = FrameEvents.paintBegin(mFrameCamera, mFrameSequence);
         super.paint(g);
 
+        final Graphics2D g2d = (Graphics2D) g;
         final int width = getWidth();
         final int height = getHeight();
-        final int img_width = mImage.getWidth();
-        final int img_height = mImage.getHeight();
+
+        if (updateRenderCache(g2d, width, height))
+        {
+            g2d.drawImage(mRenderCache, mRenderX, mRenderY, null);
+        }
+
+        final CameraStats stats = mStats;
+        if (mOverlayVisible)
+        {
+            // nothing rendered yet (the view had no size) is 0x0
+            final int vw = mVideoWidth, vh = mVideoHeight;
+            final BufferedImage source = mRenderSource;
+            mOverlay.draw(g2d, stats,
+                          vw > 0 || source == null ? vw : source.getWidth(),
+                          vh > 0 || source == null ? vh : source.getHeight());
+        }
+
+        if (stats != null)
+        {
+            stats.painted(System.nanoTime() - start);
+        }
+        FrameEvents.paintEnd(event);
+    }
+
+    /**
+     * Renders the image, scaled to fit the component keeping the aspect and
+     * rotated around the center, into the render cache if the image, the
+     * size or the rotation changed since the last time.
+     *
+     * @return false if there is nothing to draw.
+     */
+    private boolean updateRenderCache(final Graphics2D g, final int width, final int height) {
+        final BufferedImage image;
+        synchronized (mImageLock)
+        {
+            image = mImage;
+            mPainting = image;
+        }
+
+        try
+        {
+            return updateRenderCache(g, width, height, image);
+        }
+        finally
+        {
+            synchronized (mImageLock)
+            {
+                mPainting = null;
+            }
+        }
+    }
+
+    private boolean updateRenderCache(final Graphics2D g,
+                                      final int width,
+                                      final int height,
+                                      final BufferedImage image) {
+        final int version = mImageVersion.get();
+        final int quadrant = mQuadrant;
+
+        if (mRenderCache != null
+            && image == mRenderSource
+            && version == mRenderVersion
+            && width == mRenderWidth
+            && height == mRenderHeight
+            && quadrant == mRenderQuadrant)
+        {
+            return true;
+        }
+
+        if (width <= 0 || height <= 0)
+        {
+            return false;
+        }
+
+        final int img_width = image.getWidth();
+        final int img_height = image.getHeight();
 
         int dx, dy, dw, dh;
 
@@ -72,22 +236,308 @@ public class CameraView extends JComponent {
             dx = (width - dw) / 2;
         }
 
-        Graphics2D g2d = (Graphics2D) g;
+        // quarter turns of integer coordinates are exact, the bounds are the
+        // pixels covered by the rotated image.
+        final AffineTransform rotation = AffineTransform.getQuadrantRotateInstance(quadrant, width / 2, height / 2);
+        final Rectangle bounds = rotation.createTransformedShape(new Rectangle(dx, dy, dw, dh)).getBounds();
+        if (bounds.width <= 0 || bounds.height <= 0)
+        {
+            return false;
+        }
+
+        if (mRenderCache == null
+            || mRenderCache.getWidth() != bounds.width
+            || mRenderCache.getHeight() != bounds.height)
+        {
+            mRenderCache = g.getDeviceConfiguration().createCompatibleImage(bounds.width, bounds.height);
+        }
 
-        g2d.rotate(mRotation, width / 2, height / 2);
+        final Graphics2D cg = mRenderCache.createGraphics();
+        try
+        {
+            cg.translate(-bounds.x, -bounds.y);
+            cg.transform(rotation);
+            cg.drawImage(image, dx, dy, dw, dh, null);
+        }
+        finally
+        {
+            cg.dispose();
+        }
 
-        g2d.drawImage(mImage, dx, dy, dw, dh, null);
+        mRenderSource = image;
+        mRenderVersion = version;
+        mRenderWidth = width;
+        mRenderHeight = height;
+        mRenderQuadrant = quadrant;
+        mRenderX = bounds.x;
+        mRenderY = bounds.y;
+        return true;
+    }
+
+    /**
+     * Shows a new image, from any thread. Package private for the paint
+     * benchmark.
+     */
+    void show(final BufferedImage image) {
+        mImage = image;
+        mImageVersion.incrementAndGet();
+        repaint();
+    }
+
+    /**
+     * Sets the format of the frames that will be given to updatePic.
+     *
+     * @param info as received from the camera.
+     */
+    final public void setVideoInfo(final CameraInfo info) {
+        mVideoWidth = info.width;
+        mVideoHeight = info.height;
+        mVideoType = info.type;
+    }
+
+    /**
+     * Decodes the frame and shows it, like updatePic(ByteBuffer) but the
+     * decode is recorded as a flight recorder event.
+     *
+     * @param frame the frame, retained by the caller during the call.
+     */
+    final void updatePic(final FrameBuffer frame) {
+        final Object event = FrameEvents.decodeBegin(frame.getCamera(), frame.getSequence());
+        mFrameCamera = frame.getCamera();
+        mFrameSequence = frame.getSequence();
+        updatePic(frame.asByteBuffer());
+        FrameEvents.decodeEnd(event);
     }
 
+    /**
+     * Decodes the frame in the buffer and shows it, it is slow so it shouldn't
+     * be called from the network or the Swing threads, see FrameDecoder.
+     *
+     * @param byteBuffer the frame, from position to limit, jpeg or nv21
+     * depending on the video info.
+     */
     final public void updatePic(final ByteBuffer byteBuffer) {
+        if (mVideoType == CameraInfo.TYPE_NV21)
+        {
+            updateRawPic(byteBuffer);
+            return;
+        }
+
+        updateJpegPic(byteBuffer);
+    }
+
+    /**
+     * Enables time shifting: the live view can be paused and the frames kept
+     * in the ring shown instead.
+     *
+     * @param ring recent frames of the camera
+     * @param decoder the one decoding the live frames of this view, the
+     * frames from the ring go through it too.
+     */
+    final public void setTimeShift(final FrameRing ring, final FrameDecoder decoder) {
+        mFrameRing = ring;
+        mTimeShiftDecoder = decoder;
+    }
+
+    /**
+     * @return false while paused or scrubbing, the live frames are not shown
+     * then.
+     */
+    final public boolean isLive() {
+        return mLive;
+    }
+
+    /**
+     * Freezes the view on the newest frame of the ring.
+     */
+    final public void pauseLive() {
+        if (mFrameRing == null || !mLive)
+        {
+            return;
+        }
+
+        mLive = false;
+        mScrubSequence = mFrameRing.lastSequence();
+    }
+
+    /**
+     * Moves through the ring, pausing the live view if needed.
+     *
+     * @param frames how many frames forward (positive) or back (negative).
+     */
+    final public void scrub(final int frames) {
+        if (mFrameRing == null)
+        {
+            return;
+        }
+
+        pauseLive();
+        showFromRing(mScrubSequence + frames);
+    }
+
+    /**
+     * Shows the last frame of the ring at or before the timestamp, pausing the
+     * live view if needed.
+     */
+    final public void scrubTo(final long timestamp) {
+        if (mFrameRing == null)
+        {
+            return;
+        }
+
+        pauseLive();
+        showFromRing(mFrameRing.find(timestamp));
+    }
+
+    /**
+     * @return timestamp of the frame shown while not live, -1 if live or that
+     * frame was evicted from the ring.
+     */
+    final public long getScrubTimestamp() {
+        return mLive || mFrameRing == null ? -1 : mFrameRing.timestamp(mScrubSequence);
+    }
+
+    /**
+     * Back to showing the frames as they arrive.
+     */
+    final public void goLive() {
+        mLive = true;
+    }
+
+    private void showFromRing(final long sequence) {
+        // the ring keeps moving while paused, stay inside it.
+        final long seq = Math.max(mFrameRing.firstSequence(),
+                                  Math.min(mFrameRing.lastSequence(), sequence));
+        final FrameBuffer frame = mFrameRing.read(seq, FramePool.getDefault());
+        if (frame == null)
+        {
+            return;
+        }
+
+        mScrubSequence = seq;
         try
         {
-            BufferedImage bi = ImageIO.read(
-                    new ByteArrayInputStream(byteBuffer.array(),
-                                             byteBuffer.position(),
-                                             byteBuffer.remaining()));
-            mImage = bi;
-            repaint();
+            mTimeShiftDecoder.show(frame);
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    /**
+     * When enabled, frames are decoded with the biggest subsampling that
+     * still gives at least the size they are shown at, so a small view only
+     * decodes and keeps a fraction of the pixels.
+     */
+    final public void setDecodeToViewSize(final boolean enabled) {
+        mDecodeToViewSize = enabled;
+    }
+
+    /**
+     * Shows only a part of the frame, only that part is decoded. The values
+     * are fractions of the frame, from 0 to 1.
+     */
+    final public void setZoom(final double x, final double y, final double w, final double h) {
+        final double zx = Math.max(0, Math.min(1, x));
+        final double zy = Math.max(0, Math.min(1, y));
+        final double zw = Math.min(1 - zx, w);
+        final double zh = Math.min(1 - zy, h);
+        mZoom = zw <= 0 || zh <= 0 || (zw >= 1 && zh >= 1) ? null : new double[] { zx, zy, zw, zh };
+    }
+
+    /**
+     * Back to the whole frame.
+     */
+    final public void resetZoom() {
+        mZoom = null;
+    }
+
+    /**
+     * Zooms in (factor bigger than 1) or out keeping the center of the
+     * current zoom, down to 1/16 of the frame.
+     */
+    final public void zoom(final double factor) {
+        final double[] z = mZoom;
+        final double cx = z == null ? 0.5 : z[0] + z[2] / 2;
+        final double cy = z == null ? 0.5 : z[1] + z[3] / 2;
+        final double w = Math.max(1 / 16.0, Math.min(1, (z == null ? 1 : z[2]) / factor));
+        final double h = Math.max(1 / 16.0, Math.min(1, (z == null ? 1 : z[3]) / factor));
+
+        // keep it inside the frame moving the center if needed
+        final double x = Math.max(0, Math.min(1 - w, cx - w / 2));
+        final double y = Math.max(0, Math.min(1 - h, cy - h / 2));
+        setZoom(x, y, w, h);
+    }
+
+    /**
+     * Sets mRegion to the zoomed part of a frame, in pixels, the whole frame
+     * if not zoomed.
+     */
+    private Rectangle region(final int w, final int h) {
+        final double[] z = mZoom;
+        if (z == null)
+        {
+            mRegion.setBounds(0, 0, w, h);
+        }
+        else
+        {
+            final int x = (int) (z[0] * w), y = (int) (z[1] * h);
+            mRegion.setBounds(x, y,
+                              Math.max(1, Math.min(w - x, (int) Math.round(z[2] * w))),
+                              Math.max(1, Math.min(h - y, (int) Math.round(z[3] * h))));
+        }
+        return mRegion;
+    }
+
+    /**
+     * @return how many source pixels per decoded pixel, in each direction,
+     * so the decoded image is at least as big as it is shown: the image keeps
+     * its aspect so that is the component size in one direction only.
+     */
+    private int subsampling(final int w, final int h) {
+        int vw = getWidth(), vh = getHeight();
+        if (!mDecodeToViewSize || w <= 0 || h <= 0 || vw <= 0 || vh <= 0)
+        {
+            return 1;
+        }
+
+        if (isSideways())
+        {
+            final int t = vw;
+            vw = vh;
+            vh = t;
+        }
+
+        return Math.max(1, (int) Math.max(w / (double) vw, h / (double) vh));
+    }
+
+    /**
+     * Decodes the jpeg with source subsampling, and only the zoomed region if
+     * zoomed, into the images of the jpeg decoder.
+     */
+    private void updateJpegPic(final ByteBuffer byteBuffer) {
+        try
+        {
+            if (mJpegDecoder == null)
+            {
+                mJpegDecoder = new JpegDecoder();
+            }
+
+            final JpegDecoder decoder = mJpegDecoder;
+            decoder.setInput(byteBuffer.array(),
+                             byteBuffer.arrayOffset() + byteBuffer.position(),
+                             byteBuffer.remaining());
+
+            final Rectangle region = region(decoder.getWidth(), decoder.getHeight());
+            final int step = subsampling(region.width, region.height);
+            final BufferedImage shown, painting;
+            synchronized (mImageLock)
+            {
+                shown = mImage;
+                painting = mPainting;
+            }
+            show(decoder.decode(region, step, shown, painting));
         }
         catch (IOException ex)
         {
@@ -95,24 +545,73 @@ public class CameraView extends JComponent {
         }
     }
 
-    final public void setRotation(final int rot) {
-        switch (rot)
+    /**
+     * Converts a nv21 frame directly into the pixels of one of the raw images,
+     * no ImageIO involved. Not the one shown nor the one being painted.
+     */
+    private void updateRawPic(final ByteBuffer byteBuffer) {
+        final int fw = mVideoWidth, fh = mVideoHeight;
+        if (byteBuffer.remaining() < fw * fh * 3 / 2)
+        {
+            Logger.getLogger(CameraView.class.getName()).log(Level.WARNING,
+                    "Short nv21 frame: {0} bytes for {1}x{2}",
+                    new Object[] { byteBuffer.remaining(), fw, fh });
+            return;
+        }
+
+        final Rectangle region = region(fw, fh);
+        final int step = subsampling(region.width, region.height);
+        final int w = Math.max(1, region.width / step), h = Math.max(1, region.height / step);
+
+        final BufferedImage shown, painting;
+        synchronized (mImageLock)
         {
-            case 0:
-                mRotation = 0;
-                break;
-            case 1:
-                mRotation = Math.PI / 2;
-                break;
-            case 2:
-                mRotation = Math.PI;
-                break;
-            case 3:
-                mRotation = Math.PI + Math.PI / 2;
-                break;
-            default:
-                mRotation = 0;
+            shown = mImage;
+            painting = mPainting;
         }
+
+        int index = 0;
+        while (mRawImages[index] != null
+               && (mRawImages[index] == shown || mRawImages[index] == painting))
+        {
+            index++;
+        }
+
+        BufferedImage bi = mRawImages[index];
+        if (bi == null || bi.getWidth() != w || bi.getHeight() != h)
+        {
+            bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            mRawImages[index] = bi;
+        }
+
+        final int[] pixels = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+        final int offset = byteBuffer.arrayOffset() + byteBuffer.position();
+        if (step == 1 && region.width == fw && region.height == fh)
+        {
+            Nv21Converter.convert(byteBuffer.array(), offset, pixels, fw, fh);
+        }
+        else
+        {
+            Nv21Converter.convertRegion(byteBuffer.array(), offset, pixels, fw, fh,
+                                        region.x, region.y, w * step, h * step, step);
+        }
+
+        show(bi);
+    }
+
+    /**
+     * @param rot quarter turns clockwise, 0 to 3, anything else is 0.
+     */
+    final public void setRotation(final int rot) {
+        mQuadrant = rot >= 0 && rot <= 3 ? rot : 0;
+    }
+
+    /**
+     * @return true when rotated 90 or 270 degrees, the image width goes
+     * along the component height.
+     */
+    final public boolean isSideways() {
+        return (mQuadrant & 1) == 1;
     }
 
     final public void setImageSize(final int w, final int h) {
@@ -124,56 +623,67 @@ public class CameraView extends JComponent {
             }
         }
 
-        mImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        mBuffer = new int[w * h];
-
-        drawDefaultPattern();
+        drawDefaultPattern(w, h);
     }
 
     /**
-     * Draws a default pattern on the image.
+     * Draws a default pattern on the pattern image and shows it. Never on the
+     * image shown, it may be one of a decoder.
      *
      * Also useful to test the image type format, for TYPE_INT_RGB should be
      * blue.
      */
-    private void drawDefaultPattern() {
-        final int w = mImage.getWidth(), h = mImage.getHeight();
+    private void drawDefaultPattern(final int w, final int h) {
+        if (mPattern == null || mPattern.getWidth() != w || mPattern.getHeight() != h)
+        {
+            mPattern = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            mBuffer = new int[w * h];
+        }
+
         final int[] data = mBuffer;
         for (int n = 0; n < h; n++)
         {
             Arrays.fill(data, n * w, (n + 1) * w, n);
         }
-        mImage.getRaster().setDataElements(0, 0, w, h, data);
+        mPattern.getRaster().setDataElements(0, 0, w, h, data);
+        mImage = mPattern;
+        mImageVersion.incrementAndGet();
     }
 
     /**
      * Converts an nv21 byte array to a int array as expected by
      * BufferedImage.TYPE_INT_RGB.
+     * <p>
+     * This is the reference implementation, frames are converted with
+     * Nv21Converter.
      *
      * @param src nv21 format source array
+     * @param srcOffset where the frame starts in src
      * @param dst destination array
      * @param width image width
      * @param height image height
      */
-    private static void nv21ToRGB(final byte[] src,
-                                  final int[] dst,
-                                  final int width,
-                                  final int height) {
+    static void nv21ToRGB(final byte[] src,
+                          final int srcOffset,
+                          final int[] dst,
+                          final int width,
+                          final int height) {
         final int size = width * height;
 
         for (int yi = 0, uvi = size; yi < size; uvi += 2)
         {
-            final int v = (src[uvi] & 0xff) - 128;
-            final int u = (src[uvi + 1] & 0xff) - 128;
+            final int v = (src[srcOffset + uvi] & 0xff) - 128;
+            final int u = (src[srcOffset + uvi + 1] & 0xff) - 128;
 
             final int rval = (int) (1.402f * v);
             final int gval = (int) (0.344f * u + 0.714f * v);
             final int bval = (int) (1.772f * u);
 
-            dst[yi] = y2rgb(src[yi] & 0xff, rval, gval, bval);
-            dst[yi + 1] = y2rgb(src[yi + 1] & 0xff, rval, gval, bval);
-            dst[width + yi] = y2rgb(src[width + yi] & 0xff, rval, gval, bval);
-            dst[width + yi + 1] = y2rgb(src[width + yi + 1] & 0xff, rval, gval, bval);
+            final int si = srcOffset + yi;
+            dst[yi] = y2rgb(src[si] & 0xff, rval, gval, bval);
+            dst[yi + 1] = y2rgb(src[si + 1] & 0xff, rval, gval, bval);
+            dst[width + yi] = y2rgb(src[width + si] & 0xff, rval, gval, bval);
+            dst[width + yi + 1] = y2rgb(src[width + si + 1] & 0xff, rval, gval, bval);
 
             yi += 2;
             if ((yi % width) == 0)
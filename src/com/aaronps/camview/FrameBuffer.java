@@ -0,0 +1,123 @@
+package com.aaronps.camview;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A frame received from a camera, reference counted so it can be passed
+ * between threads without copying it.
+ * <p>
+ * Whoever wants to keep the frame after the call that gave it, must
+ * {@link #retain()} it and {@link #release()} it when finished. When the count
+ * reaches zero the buffer goes back to its {@link FramePool}, after that it
+ * must not be touched.
+ * <p>
+ * The data is in {@link #array()} from 0 to {@link #length()}.
+ *
+ * @author krom
+ */
+public final class FrameBuffer {
+
+    private final FramePool mPool;
+    private final byte[] mArray;
+    private final ByteBuffer mByteBuffer;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mLength;
+
+    // where it comes from, for the flight recorder events
+    private String mCamera;
+    private long mSequence;
+
+    FrameBuffer(final FramePool pool, final int capacity) {
+        mPool = pool;
+        mArray = new byte[capacity];
+        mByteBuffer = ByteBuffer.wrap(mArray);
+    }
+
+    /**
+     * Prepares the buffer to be handed out, with a count of one.
+     */
+    FrameBuffer reuse(final int length) {
+        mLength = length;
+        mCamera = null;
+        mSequence = 0;
+        mByteBuffer.clear().limit(length);
+        mRefCount.set(1);
+        return this;
+    }
+
+    /**
+     * Tells the camera and pic sequence of the frame, see {@link FrameEvents}.
+     * Only the producer calls it, before handing the frame.
+     */
+    void setOrigin(final String camera, final long sequence) {
+        mCamera = camera;
+        mSequence = sequence;
+    }
+
+    /**
+     * @return the name of the camera, null if unknown.
+     */
+    public String getCamera() {
+        return mCamera;
+    }
+
+    /**
+     * @return the pic sequence in the connection, 0 if unknown.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public byte[] array() {
+        return mArray;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int capacity() {
+        return mArray.length;
+    }
+
+    /**
+     * The buffer used by the producer to fill the frame, its limit is the
+     * frame length. Consumers should use {@link #array()} or
+     * {@link #asByteBuffer()}, this one is not thread safe.
+     */
+    public ByteBuffer getByteBuffer() {
+        return mByteBuffer;
+    }
+
+    /**
+     * @return a new ByteBuffer over the frame data, only valid while the
+     * frame is retained.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(mArray, 0, mLength);
+    }
+
+    public FrameBuffer retain() {
+        if (mRefCount.getAndIncrement() <= 0)
+        {
+            throw new IllegalStateException("Retaining a released frame");
+        }
+        return this;
+    }
+
+    public void release() {
+        final int count = mRefCount.decrementAndGet();
+        if (count == 0)
+        {
+            if (mPool != null)
+            {
+                mPool.recycle(this);
+            }
+        }
+        else if (count < 0)
+        {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+}
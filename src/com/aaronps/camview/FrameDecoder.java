@@ -0,0 +1,219 @@
+package com.aaronps.camview;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decode stage between the network thread and a {@link CameraView}.
+ * <p>
+ * The network thread hands frames with {@link #submit(FrameBuffer)}, which
+ * never waits for a decode: there is a single pending slot and the newest
+ * frame wins, if the previous pending frame was not decoded yet it is dropped.
+ * <p>
+ * Decoding runs on the given executor, which can be shared by many decoders.
+ * Only one frame of the same decoder is decoded at a time, so frames are
+ * shown in order.
+ * <p>
+ * While the view is not live (see {@link CameraView#pauseLive()}) submitted
+ * frames are ignored, only the ones given to {@link #show(FrameBuffer)} are
+ * decoded.
+ *
+ * @author krom
+ */
+public final class FrameDecoder implements Runnable {
+
+    private static final Logger logger = Logger.getLogger("FrameDecoder");
+
+    private final CameraView mView;
+    private final Executor mExecutor;
+
+    private final Object mLock = new Object();
+
+    private FrameBuffer mPending;
+    private boolean mScheduled = false;
+
+    private long mDecodedCount = 0;
+    private long mDroppedCount = 0;
+
+    private volatile CameraStats mStats;
+
+    public FrameDecoder(final CameraView view, final Executor executor) {
+        mView = view;
+        mExecutor = executor;
+    }
+
+    /**
+     * @param stats where to record the decode times and dropped frames.
+     */
+    public void setStats(final CameraStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Creates an executor suitable to be shared by several decoders.
+     *
+     * @param threads number of decoder threads.
+     * @return the executor, its threads are daemon.
+     */
+    public static ExecutorService newDecoderPool(final int threads) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, (r) -> {
+            final Thread t = new Thread(r, "FrameDecoder-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a frame for decoding, the frame is retained until decoded or
+     * dropped.
+     *
+     * @param frame the frame
+     */
+    public void submit(final FrameBuffer frame) {
+        if (!mView.isLive())
+        {
+            return;
+        }
+
+        show(frame);
+    }
+
+    /**
+     * Like submit but even when the view is not live.
+     *
+     * @param frame the frame
+     */
+    public void show(final FrameBuffer frame) {
+        frame.retain();
+
+        final FrameBuffer dropped;
+        synchronized (mLock)
+        {
+            dropped = mPending;
+            mPending = frame;
+
+            if (dropped != null)
+            {
+                mDroppedCount++;
+                recordDropped();
+            }
+
+            if (!mScheduled)
+            {
+                mScheduled = true;
+                mExecutor.execute(this);
+            }
+        }
+
+        if (dropped != null)
+        {
+            dropped.release();
+        }
+    }
+
+    /**
+     * Drops the pending frame, if any.
+     */
+    public void clear() {
+        final FrameBuffer dropped;
+        synchronized (mLock)
+        {
+            dropped = mPending;
+            mPending = null;
+
+            if (dropped != null)
+            {
+                mDroppedCount++;
+                recordDropped();
+            }
+        }
+
+        if (dropped != null)
+        {
+            dropped.release();
+        }
+    }
+
+    public long getDecodedCount() {
+        synchronized (mLock)
+        {
+            return mDecodedCount;
+        }
+    }
+
+    public long getDroppedCount() {
+        synchronized (mLock)
+        {
+            return mDroppedCount;
+        }
+    }
+
+    private void recordDropped() {
+        final CameraStats stats = mStats;
+        if (stats != null)
+        {
+            stats.frameDropped();
+        }
+    }
+
+    /**
+     * Decodes the pending frame, if there is another one when finished it
+     * schedules itself again instead of looping, this way a fast camera cannot
+     * take a shared decoder thread for itself.
+     */
+    @Override
+    public void run() {
+        final FrameBuffer frame;
+
+        synchronized (mLock)
+        {
+            frame = mPending;
+            mPending = null;
+
+            if (frame == null)
+            {
+                mScheduled = false;
+                return;
+            }
+        }
+
+        final long start = System.nanoTime();
+        try
+        {
+            mView.updatePic(frame);
+
+            final CameraStats stats = mStats;
+            if (stats != null)
+            {
+                stats.decoded(System.nanoTime() - start);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            logger.log(Level.SEVERE, "Decoding failed", e);
+        }
+        finally
+        {
+            frame.release();
+        }
+
+        synchronized (mLock)
+        {
+            mDecodedCount++;
+
+            if (mPending != null)
+            {
+                mExecutor.execute(this);
+            }
+            else
+            {
+                mScheduled = false;
+            }
+        }
+    }
+}
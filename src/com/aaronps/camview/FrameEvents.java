@@ -0,0 +1,137 @@
+package com.aaronps.camview;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Flight recorder events of the life of a frame: request sent, header parsed,
+ * payload complete, decode and paint.
+ * <p>
+ * The events are in src-jfr, compiled only with a jdk that has jdk.jfr and
+ * loaded by reflection, without it (or with <code>-Dcamview.jfr=false</code>)
+ * these calls do nothing. When loaded but not recording, they cost a check of
+ * a flag, the event objects are not even allocated.
+ * <p>
+ * The camera is its {@link CameraSource#getName()}, the network events take
+ * the camera itself and ask for the name only when recording. The sequence is
+ * the number of the pic request in the connection, starting at 1. The camera
+ * answers the requests in order so the request and the frame that answers it
+ * have the same sequence.
+ *
+ * @author krom
+ */
+final class FrameEvents {
+
+    private static final Logger logger = Logger.getLogger("FrameEvents");
+
+    interface Sink {
+
+        void requestSent(final CameraSource camera, final long sequence);
+
+        void headerParsed(final CameraSource camera, final long sequence, final int length);
+
+        void payloadComplete(final CameraSource camera, final long sequence, final int length);
+
+        /**
+         * @return what must be given to decodeEnd, null if not recording.
+         */
+        Object decodeBegin(final String camera, final long sequence);
+
+        void decodeEnd(final Object event);
+
+        /**
+         * @return what must be given to paintEnd, null if not recording.
+         */
+        Object paintBegin(final String camera, final long sequence);
+
+        void paintEnd(final Object event);
+    }
+
+    // compiled from src-jfr only when building with a jdk that has it.
+    private static final String JFR_SINK = "com.aaronps.camview.JfrFrameEvents";
+
+    private static final Sink sSink = loadSink();
+
+    private static Sink loadSink() {
+        if (Boolean.parseBoolean(System.getProperty("camview.jfr", "true")))
+        {
+            try
+            {
+                final Sink sink = (Sink) Class.forName(JFR_SINK).getDeclaredConstructor().newInstance();
+                logger.fine("Using flight recorder events");
+                return sink;
+            }
+            catch (ReflectiveOperationException | LinkageError e)
+            {
+                // not compiled or older jvm
+                logger.log(Level.FINE, "Flight recorder events not available", e);
+            }
+        }
+
+        return new NullSink();
+    }
+
+    private FrameEvents() {
+    }
+
+    static void requestSent(final CameraSource camera, final long sequence) {
+        sSink.requestSent(camera, sequence);
+    }
+
+    static void headerParsed(final CameraSource camera, final long sequence, final int length) {
+        sSink.headerParsed(camera, sequence, length);
+    }
+
+    static void payloadComplete(final CameraSource camera, final long sequence, final int length) {
+        sSink.payloadComplete(camera, sequence, length);
+    }
+
+    static Object decodeBegin(final String camera, final long sequence) {
+        return sSink.decodeBegin(camera, sequence);
+    }
+
+    static void decodeEnd(final Object event) {
+        sSink.decodeEnd(event);
+    }
+
+    static Object paintBegin(final String camera, final long sequence) {
+        return sSink.paintBegin(camera, sequence);
+    }
+
+    static void paintEnd(final Object event) {
+        sSink.paintEnd(event);
+    }
+
+    private static final class NullSink implements Sink {
+
+        @Override
+        public void requestSent(final CameraSource camera, final long sequence) {
+        }
+
+        @Override
+        public void headerParsed(final CameraSource camera, final long sequence, final int length) {
+        }
+
+        @Override
+        public void payloadComplete(final CameraSource camera, final long sequence, final int length) {
+        }
+
+        @Override
+        public Object decodeBegin(final String camera, final long sequence) {
+            return null;
+        }
+
+        @Override
+        public void decodeEnd(final Object event) {
+        }
+
+        @Override
+        public Object paintBegin(final String camera, final long sequence) {
+            return null;
+        }
+
+        @Override
+        public void paintEnd(final Object event) {
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.aaronps.camview;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of {@link FrameBuffer}, shared by all the connections.
+ * <p>
+ * Buffers are kept by size class (powers of two from MIN_CLASS_SIZE to
+ * MAX_CLASS_SIZE), frames are always contiguous. The pool never holds more
+ * than its memory budget, counting both the buffers in use and the free ones;
+ * when a new buffer doesn't fit, free buffers of other classes are discarded
+ * to make room and, if still not enough, an unpooled buffer is given which
+ * will be garbage collected on release. The network thread never waits for a
+ * buffer.
+ * <p>
+ * So the budget is soft, it bounds the pooled buffers only: the unpooled ones
+ * are not counted and while they live the frames may use more memory than
+ * the budget, {@link #getUnpooledCount()} says how often that happens.
+ * <p>
+ * MAX_CLASS_SIZE is the default maximum frame of RemoteCamera, 4K NV21 fits,
+ * and a quarter of the default budget: with cameras sending frames that big
+ * raise <code>camview.pool.budget</code> or most of them will be unpooled.
+ *
+ * @author krom
+ */
+public final class FramePool {
+
+    public static final int MIN_CLASS_SIZE = 16 * 1024;
+    public static final int MAX_CLASS_SIZE = 16 * 1024 * 1024;
+
+    private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_CLASS_SHIFT + 1;
+
+    private static final FramePool sDefault = new FramePool(
+            Long.getLong("camview.pool.budget", 64L * 1024 * 1024));
+
+    private final long mBudget;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ArrayDeque<FrameBuffer>[] mFree = new ArrayDeque[CLASS_COUNT];
+
+    // all guarded by "this"
+    private long mPooledBytes = 0;
+    private long mFreeBytes = 0;
+    private long mAllocatedCount = 0;
+    private long mReusedCount = 0;
+    private long mUnpooledCount = 0;
+    private long mDiscardedCount = 0;
+
+    /**
+     * @param budget maximum bytes held by the pool, in use or not, unpooled
+     * buffers not included.
+     */
+    public FramePool(final long budget) {
+        mBudget = budget;
+        for (int n = 0; n < CLASS_COUNT; n++)
+        {
+            mFree[n] = new ArrayDeque<>();
+        }
+    }
+
+    public static FramePool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Gets a buffer able to hold <code>length</code> bytes, with a reference
+     * count of one.
+     *
+     * @param length frame length, must not be bigger than MAX_CLASS_SIZE.
+     * @return the buffer
+     */
+    public FrameBuffer acquire(final int length) {
+        if (length > MAX_CLASS_SIZE)
+        {
+            throw new IllegalArgumentException("Frame too big for the pool: " + length);
+        }
+
+        final int sizeClass = sizeClass(length);
+        final int capacity = MIN_CLASS_SIZE << sizeClass;
+
+        synchronized (this)
+        {
+            final FrameBuffer free = mFree[sizeClass].pollFirst();
+            if (free != null)
+            {
+                mFreeBytes -= capacity;
+                mReusedCount++;
+                return free.reuse(length);
+            }
+
+            if (mPooledBytes + capacity > mBudget)
+            {
+                trim(mPooledBytes + capacity - mBudget);
+            }
+
+            if (mPooledBytes + capacity > mBudget)
+            {
+                mUnpooledCount++;
+                return new FrameBuffer(null, length).reuse(length);
+            }
+
+            mPooledBytes += capacity;
+            mAllocatedCount++;
+        }
+
+        return new FrameBuffer(this, capacity).reuse(length);
+    }
+
+    synchronized void recycle(final FrameBuffer fb) {
+        mFree[sizeClass(fb.capacity())].addFirst(fb);
+        mFreeBytes += fb.capacity();
+    }
+
+    /**
+     * Discards free buffers, biggest first, until <code>bytes</code> have
+     * been freed or there are no more free buffers.
+     */
+    private void trim(long bytes) {
+        for (int n = CLASS_COUNT - 1; n >= 0 && bytes > 0; n--)
+        {
+            final int capacity = MIN_CLASS_SIZE << n;
+            while (bytes > 0 && mFree[n].pollLast() != null)
+            {
+                mPooledBytes -= capacity;
+                mFreeBytes -= capacity;
+                mDiscardedCount++;
+                bytes -= capacity;
+            }
+        }
+    }
+
+    private static int sizeClass(final int length) {
+        if (length <= MIN_CLASS_SIZE)
+        {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_CLASS_SHIFT;
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    public synchronized long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    public synchronized long getAllocatedCount() {
+        return mAllocatedCount;
+    }
+
+    public synchronized long getReusedCount() {
+        return mReusedCount;
+    }
+
+    public synchronized long getUnpooledCount() {
+        return mUnpooledCount;
+    }
+
+    public synchronized long getDiscardedCount() {
+        return mDiscardedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FramePool{" + "budget=" + mBudget + ", pooled=" + mPooledBytes
+                + ", free=" + mFreeBytes + ", allocated=" + mAllocatedCount
+                + ", reused=" + mReusedCount + ", unpooled=" + mUnpooledCount
+                + ", discarded=" + mDiscardedCount + '}';
+    }
+}
@@ -9,35 +9,130 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Paces the "Pic" requests sent to a camera.
+ * <p>
+ * Requests are credit based: up to <code>window</code> requests may be in
+ * flight at the same time and every frame received gives one credit back (see
+ * {@link #onFrameReceived()}). With a window of 1 this is the old behaviour of
+ * requesting the next pic only after the previous one arrived, bigger windows
+ * hide the network round trip.
+ * <p>
+ * A window of {@link #AUTO_WINDOW} sizes the window from the measured round
+ * trip and the minimum delay between requests.
+ * <p>
+ * In adaptive mode (see {@link #setAdaptive(boolean)}) the delay between
+ * requests is not fixed: it follows an AIMD rate, it grows a little every
+ * control interval while things go well and is cut when the camera or the
+ * host can't keep up, so each camera settles at the rate its link and the
+ * decoder can sustain.
  *
  * @author krom
  */
 public final class FrameRequester implements Runnable {
-    
+
     private final static Logger logger = Logger.getLogger("FrameRequester");
 
+    /**
+     * Window value meaning "tune it automatically".
+     */
+    public static final int AUTO_WINDOW = 0;
+
+    /**
+     * Maximum number of requests in flight, also the size of the send time
+     * ring.
+     */
+    public static final int MAX_WINDOW = 8;
+
+    /**
+     * Highest rate of the adaptive mode, in frames per second, when there is
+     * no minimum delay.
+     */
+    public static final double MAX_ADAPTIVE_RATE = 60;
+
+    private static final double MIN_ADAPTIVE_RATE = 1;
+    private static final double START_RATE = 5;
+
+    // rate += INCREASE every interval, rate *= DECREASE on congestion, until
+    // the first congestion it grows by SLOW_START instead.
+    private static final double INCREASE = 1;
+    private static final double DECREASE = 0.7;
+    private static final double SLOW_START = 1.5;
+
+    // the control interval is this or the round trip, the longest.
+    private static final long CONTROL_INTERVAL = 250000000L;
+
+    // round trip above base * 2 + slack means requests are queuing
+    private static final long RTT_SLACK = 20;
+
+    // the base round trip is forgotten after this, it may have changed
+    private static final long BASE_RTT_WINDOW = 10000000000L;
+
+    // decoding a frame taking more than this part of the frame interval means
+    // the host is saturated
+    private static final double DECODE_BUDGET = 0.75;
+
     /**
      * @attention CameraThread may be called from different threads, I'm not
      * going to synchronize it here, let's see if problems arise.
      */
-    private final RemoteCamera mRemoteCamera;
+    private final CameraSource mRemoteCamera;
     private final ScheduledExecutorService mExecutor;
     private long mLastTimestamp = 0;
     private Future<?> mFuture;
     private long mMinDelay = 66; // 66 = ~15 fps
     private boolean mPaused = false;
 
-    public FrameRequester(final RemoteCamera remoteCamera) {
+    private int mWindow = 1;
+    private boolean mAutoWindow = false;
+    private int mInFlight = 0;
+
+    // send times of the requests in flight (nanoTime), used to measure the
+    // round trip.
+    private final long[] mSendTimes = new long[MAX_WINDOW];
+    private int mSendHead = 0;
+    private long mSmoothRtt = 0;
+
+    private CameraStats mStats;
+
+    // delay between requests in use, the min delay or the adaptive one.
+    private long mDelay = mMinDelay;
+
+    private boolean mAdaptive = false;
+    private boolean mSlowStart;
+    private double mRate;
+    private long mBaseRtt;
+    private long mBaseRttTime;
+    private long mControlTime;
+    private long mControlFrames;
+    private long mControlDropped;
+
+    public FrameRequester(final CameraSource remoteCamera) {
         mRemoteCamera = remoteCamera;
         mExecutor = Executors.newSingleThreadScheduledExecutor();
     }
 
+    /**
+     * Sets the minimum delay between requests, in adaptive mode it is the
+     * limit of the rate.
+     *
+     * @param minDelay milliseconds, 0 for no limit.
+     */
     public synchronized void setMinDelay(final long minDelay) {
         mMinDelay = minDelay;
+        if (mAdaptive)
+        {
+            mRate = Math.min(mRate, maxRate());
+        }
+        updateDelay();
+        if (mAutoWindow)
+        {
+            updateAutoWindow();
+        }
+
         if ( mFuture != null )
         {
             // There was a pending request, try to cancel it and re-schedule
-            if ( mFuture.cancel(false) ) 
+            if ( mFuture.cancel(false) )
             {
                 // because it was canceled properly (didn't run) we need to null
                 // it before request_pic().
@@ -51,7 +146,96 @@ public final class FrameRequester implements Runnable {
         }
     }
 
-    public void shutdown() {
+    /**
+     * Sets how many requests can be in flight at the same time, it applies
+     * from the next request.
+     *
+     * @param window number of requests, clamped to [1, MAX_WINDOW], or
+     * AUTO_WINDOW to tune it from the measured round trip.
+     */
+    public synchronized void setWindow(final int window) {
+        if (window == AUTO_WINDOW)
+        {
+            mAutoWindow = true;
+            updateAutoWindow();
+        }
+        else
+        {
+            mAutoWindow = false;
+            mWindow = Math.max(1, Math.min(MAX_WINDOW, window));
+        }
+    }
+
+    /**
+     * Enables or disables the adaptive rate. It starts slow and grows while
+     * none of these happen, when one does the rate is cut:
+     * <ul>
+     * <li>the round trip grows well above its base, requests are queuing in
+     * the link or the camera.</li>
+     * <li>the decoder drops frames or decoding one takes most of the time
+     * between frames, the host can't keep up.</li>
+     * <li>requests can't be written to the socket, the send backlog.</li>
+     * </ul>
+     * The decoder and backlog signals come from the stats, see setStats.
+     */
+    public synchronized void setAdaptive(final boolean adaptive) {
+        mAdaptive = adaptive;
+        if (adaptive)
+        {
+            mRate = Math.min(START_RATE, maxRate());
+            mSlowStart = true;
+            mBaseRtt = 0;
+            mControlTime = System.nanoTime();
+            mControlFrames = 0;
+            mControlDropped = mStats != null ? mStats.getFramesDropped() : 0;
+        }
+        updateDelay();
+        if (mAutoWindow)
+        {
+            updateAutoWindow();
+        }
+    }
+
+    public synchronized boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * @return the requests per second the delay allows now, 0 if unlimited.
+     */
+    public synchronized double getRate() {
+        return mDelay == 0 ? 0 : 1000.0 / mDelay;
+    }
+
+    /**
+     * @param stats where to record the round trips and requests in flight.
+     */
+    public synchronized void setStats(final CameraStats stats) {
+        mStats = stats;
+    }
+
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return smoothed request to frame round trip in milliseconds, 0 if not
+     * measured yet.
+     */
+    public synchronized long getRoundTrip() {
+        return mSmoothRtt;
+    }
+
+    /**
+     * Stops its scheduler thread, nothing is requested after this. Call it
+     * when done with the camera, each requester has its own thread.
+     */
+    public synchronized void shutdown() {
+        pause();
         mExecutor.shutdownNow();
     }
 
@@ -63,46 +247,95 @@ public final class FrameRequester implements Runnable {
         }
     }
 
-    public void pause() {
-        cancel();
+    /**
+     * Cancels the scheduled request and forgets the ones in flight.
+     */
+    public synchronized void pause() {
+        reset();
         mPaused = true;
     }
-    
-    public void resume() {
+
+    /**
+     * Forgets the requests in flight, use it when the stream (re)starts as
+     * the camera won't answer requests made before.
+     */
+    public synchronized void reset() {
+        cancel();
+        mInFlight = 0;
+        if (mStats != null)
+        {
+            mStats.requestsInFlight(0);
+        }
+    }
+
+    public synchronized void resume() {
         mPaused = false;
     }
 
+    /**
+     * Gives back one credit, call it every time a frame is received. It will
+     * request more pics if possible.
+     */
+    public synchronized void onFrameReceived() {
+        if (mInFlight > 0)
+        {
+            final int tail = (mSendHead - mInFlight + MAX_WINDOW) % MAX_WINDOW;
+            final long rttNanos = System.nanoTime() - mSendTimes[tail];
+            final long rtt = rttNanos / 1000000L;
+            mSmoothRtt = mSmoothRtt == 0 ? rtt : (mSmoothRtt * 7 + rtt) / 8;
+            mInFlight--;
+
+            if (mStats != null)
+            {
+                mStats.roundTrip(rttNanos);
+                mStats.requestsInFlight(mInFlight);
+            }
+
+            if (mAdaptive)
+            {
+                adapt(rtt);
+            }
+
+            if (mAutoWindow)
+            {
+                updateAutoWindow();
+            }
+        }
+
+        request_pic();
+    }
+
+    /**
+     * Sends as many requests as the credits and the minimum delay allow, if
+     * the delay doesn't allow it now, one is scheduled for later.
+     */
     public synchronized void request_pic() {
-        if (mPaused)
+        if (mPaused || mExecutor.isShutdown())
         {
             return;
         }
-        
+
         try
         {
-            if (mMinDelay == 0)
-            {
-                mRemoteCamera.request_pic();
-            }
-            else
+            while (mInFlight < mWindow && mFuture == null)
             {
-                final long now = System.currentTimeMillis();
-                final long dif = now - mLastTimestamp;
-                if (dif >= mMinDelay)
+                if (mDelay == 0)
                 {
-                    if (mFuture == null)
-                    {
-                        mRemoteCamera.request_pic();
-                        mLastTimestamp = now;
-                    }
+                    send(System.currentTimeMillis());
                 }
                 else
                 {
-                    if (mFuture == null)
+                    final long now = System.currentTimeMillis();
+                    final long dif = now - mLastTimestamp;
+                    if (dif >= mDelay)
+                    {
+                        send(now);
+                    }
+                    else
                     {
-                        if (dif > 0)
+                        if (dif >= 0)
                         {
-                            mFuture = mExecutor.schedule(this, mMinDelay - dif, TimeUnit.MILLISECONDS);
+                            mFuture = mExecutor.schedule(this, mDelay - dif, TimeUnit.MILLISECONDS);
                         }
                         else
                         {
@@ -118,21 +351,106 @@ public final class FrameRequester implements Runnable {
         }
     }
 
-    @Override
-    public void run() {
-        try
+    private void send(final long now) throws IOException {
+        mRemoteCamera.request_pic();
+        mLastTimestamp = now;
+        mSendTimes[mSendHead] = System.nanoTime();
+        mSendHead = (mSendHead + 1) % MAX_WINDOW;
+        mInFlight++;
+
+        if (mStats != null)
+        {
+            mStats.requestsInFlight(mInFlight);
+        }
+    }
+
+    /**
+     * Enough requests to cover one round trip at the requested rate, plus one
+     * so the camera always has something queued.
+     */
+    private void updateAutoWindow() {
+        if (mSmoothRtt == 0)
+        {
+            mWindow = 1;
+        }
+        else if (mDelay == 0)
+        {
+            mWindow = MAX_WINDOW;
+        }
+        else
         {
-            mRemoteCamera.request_pic();
+            final long w = (mSmoothRtt + mDelay - 1) / mDelay + 1;
+            mWindow = (int) Math.max(1, Math.min(MAX_WINDOW, w));
         }
-        catch (IOException ex)
+    }
+
+    /**
+     * One step of the adaptive rate, called on every frame with its round
+     * trip, it only acts once per control interval.
+     */
+    private void adapt(final long rtt) {
+        final long now = System.nanoTime();
+        mControlFrames++;
+
+        // the lowest round trip seen lately is the one with empty queues
+        if (mBaseRtt == 0 || rtt <= mBaseRtt || now - mBaseRttTime > BASE_RTT_WINDOW)
         {
-            logger.log(Level.SEVERE, "Thread unable to request pic... let's hope someone closes that socket", ex);
+            mBaseRtt = Math.max(1, rtt);
+            mBaseRttTime = now;
+        }
+
+        final long elapsed = now - mControlTime;
+        if (elapsed < Math.max(CONTROL_INTERVAL, mSmoothRtt * 1000000L))
+        {
+            return;
         }
 
+        final CameraStats stats = mStats;
+        final long dropped = stats != null ? stats.getFramesDropped() : 0;
+        final long decode = stats != null ? stats.lastDecodeTime() : 0;
+        final int backlog = stats != null ? stats.getSendBacklog() : 0;
+
+        final boolean congested = mSmoothRtt > mBaseRtt * 2 + RTT_SLACK
+                                  || dropped > mControlDropped
+                                  || decode > 1e9 / mRate * DECODE_BUDGET
+                                  || backlog > 0;
+
+        if (congested)
+        {
+            mRate = Math.max(MIN_ADAPTIVE_RATE, mRate * DECREASE);
+            mSlowStart = false;
+        }
+        else if (mControlFrames * 1e9 / elapsed >= mRate / 2)
+        {
+            // only grow if the rate is what limits, not the window or the
+            // camera
+            mRate = Math.min(maxRate(), mSlowStart ? mRate * SLOW_START : mRate + INCREASE);
+        }
+
+        mControlTime = now;
+        mControlFrames = 0;
+        mControlDropped = dropped;
+        updateDelay();
+        if (mAutoWindow)
+        {
+            updateAutoWindow();
+        }
+    }
+
+    private double maxRate() {
+        return mMinDelay == 0 ? MAX_ADAPTIVE_RATE : Math.min(MAX_ADAPTIVE_RATE, 1000.0 / mMinDelay);
+    }
+
+    private void updateDelay() {
+        mDelay = mAdaptive ? Math.round(1000 / mRate) : mMinDelay;
+    }
+
+    @Override
+    public void run() {
         synchronized (this)
         {
             mFuture = null;
-            mLastTimestamp = System.currentTimeMillis();
+            request_pic();
         }
     }
 
@@ -0,0 +1,202 @@
+package com.aaronps.camview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The most recent frames of a camera, kept in memory for time shifting.
+ * <p>
+ * The frames are copied, as received, into one direct buffer used as a ring:
+ * each frame goes after the previous one, wrapping to the start when it
+ * doesn't fit before the end, and the oldest frames are evicted when the new
+ * one needs their space. Being off-heap, a big history is not scanned by the
+ * garbage collector. The frame positions and timestamps are kept in primitive
+ * arrays, adding a frame doesn't allocate.
+ * <p>
+ * Frames are identified by a sequence number that increases with every frame
+ * added, the ring holds the ones from {@link #firstSequence()} to
+ * {@link #lastSequence()}. All the frames are of the same video format,
+ * changing it clears the ring.
+ *
+ * @author krom
+ */
+public final class FrameRing {
+
+    private final ByteBuffer mArena;
+    private final long[] mTimestamps;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+
+    private final CameraInfo mInfo = new CameraInfo();
+
+    // guarded by "this"
+    private long mFirstSequence = 0;
+    private int mCount = 0;
+    private int mWrite = 0;
+
+    /**
+     * @param budget bytes of frame data to keep.
+     * @param maxFrames maximum number of frames to keep.
+     */
+    public FrameRing(final int budget, final int maxFrames) {
+        mArena = ByteBuffer.allocateDirect(budget);
+        mTimestamps = new long[maxFrames];
+        mOffsets = new int[maxFrames];
+        mLengths = new int[maxFrames];
+    }
+
+    /**
+     * Sets the format of the frames that will be added, if it is not the
+     * current one the ring is cleared.
+     */
+    public synchronized void setVideoInfo(final CameraInfo info) {
+        if (info.width != mInfo.width || info.height != mInfo.height || info.type != mInfo.type)
+        {
+            clear();
+            mInfo.width = info.width;
+            mInfo.height = info.height;
+            mInfo.type = info.type;
+        }
+    }
+
+    /**
+     * @return the format of the frames, don't modify it.
+     */
+    public CameraInfo getVideoInfo() {
+        return mInfo;
+    }
+
+    /**
+     * Copies the frame into the ring, frames bigger than the whole ring are
+     * ignored.
+     */
+    public synchronized void add(final long timestamp, final FrameBuffer frame) {
+        final int length = frame.length();
+        final int capacity = mArena.capacity();
+        if (length > capacity)
+        {
+            return;
+        }
+
+        int start = mWrite;
+        if (start + length > capacity)
+        {
+            // the frames between the write position and the end are the
+            // oldest ones, they go first.
+            while (mCount > 0 && mOffsets[slot(mFirstSequence)] >= start)
+            {
+                evict();
+            }
+            start = 0;
+        }
+
+        while (mCount > 0)
+        {
+            final int oldest = slot(mFirstSequence);
+            final int o = mOffsets[oldest];
+            if (mCount < mTimestamps.length && (o >= start + length || o + mLengths[oldest] <= start))
+            {
+                break;
+            }
+            evict();
+        }
+
+        final int s = slot(mFirstSequence + mCount);
+        mTimestamps[s] = timestamp;
+        mOffsets[s] = start;
+        mLengths[s] = length;
+        mCount++;
+
+        mArena.position(start);
+        mArena.put(frame.array(), 0, length);
+        mWrite = start + length;
+    }
+
+    public synchronized void clear() {
+        mFirstSequence += mCount;
+        mCount = 0;
+        mWrite = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return the sequence of the oldest frame kept.
+     */
+    public synchronized long firstSequence() {
+        return mFirstSequence;
+    }
+
+    /**
+     * @return the sequence of the newest frame, firstSequence() - 1 if empty.
+     */
+    public synchronized long lastSequence() {
+        return mFirstSequence + mCount - 1;
+    }
+
+    /**
+     * @return the timestamp of the frame, -1 if it is not in the ring.
+     */
+    public synchronized long timestamp(final long sequence) {
+        return contains(sequence) ? mTimestamps[slot(sequence)] : -1;
+    }
+
+    /**
+     * @return the last frame at or before the timestamp, the oldest one if
+     * they are all after it, -1 if empty.
+     */
+    public synchronized long find(final long timestamp) {
+        if (mCount == 0)
+        {
+            return -1;
+        }
+
+        long lo = mFirstSequence, hi = mFirstSequence + mCount - 1;
+        while (lo < hi)
+        {
+            final long mid = (lo + hi + 1) >>> 1;
+            if (mTimestamps[slot(mid)] <= timestamp)
+            {
+                lo = mid;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Copies a frame out of the ring into a buffer of the pool, the caller
+     * must release it.
+     *
+     * @return the frame, null if it is not in the ring anymore.
+     */
+    public synchronized FrameBuffer read(final long sequence, final FramePool pool) {
+        if (!contains(sequence))
+        {
+            return null;
+        }
+
+        final int s = slot(sequence);
+        final FrameBuffer frame = pool.acquire(mLengths[s]);
+        mArena.position(mOffsets[s]);
+        mArena.get(frame.array(), 0, mLengths[s]);
+        return frame;
+    }
+
+    private boolean contains(final long sequence) {
+        return sequence >= mFirstSequence && sequence < mFirstSequence + mCount;
+    }
+
+    private int slot(final long sequence) {
+        return (int) (sequence % mTimestamps.length);
+    }
+
+    private void evict() {
+        mFirstSequence++;
+        mCount--;
+    }
+}
@@ -0,0 +1,319 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Captures cameras to disk without any user interface, it doesn't load AWT or
+ * Swing so it runs on servers without display.
+ * <p>
+ * Usage: <code>HeadlessRecorder [-o dir] [-delay ms] [-t seconds]
+ * [-segment MB] [-retention MB] [-stream] host:port[:WxH] ...</code>
+ * <ul>
+ * <li>-o: output directory, default "recordings", each camera records into
+ * its own subdirectory of segments, see {@link SegmentedRecorder}.</li>
+ * <li>-delay: minimum delay between pic requests, like the FPS limit of the
+ * viewer, default 66.</li>
+ * <li>-t: stop after that many seconds, default run until killed.</li>
+ * <li>-segment: size of the segment files, default 64.</li>
+ * <li>-retention: maximum size of the segments of each camera, the oldest
+ * are deleted, default 0 (no limit).</li>
+ * <li>-stream: record into a single .frames file per camera instead, see
+ * {@link StreamRecorder}.</li>
+ * </ul>
+ * When no size is given the first one of the camera's list is used.
+ *
+ * @author krom
+ */
+public final class HeadlessRecorder {
+
+    private static final Logger logger = Logger.getLogger("HeadlessRecorder");
+
+    private static final int DEFAULT_PORT = 19999;
+
+    // how long stop waits for the engine to let the cameras go
+    private static final long STOP_TIMEOUT = 5000;
+
+    private final CameraEngine mEngine;
+    private final List<Capture> mCaptures = new ArrayList<>();
+
+    private int mSegmentSize = SegmentedRecorder.DEFAULT_SEGMENT_SIZE;
+    private long mRetention = 0;
+    private boolean mStreamFormat = false;
+
+    public HeadlessRecorder(final CameraEngine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Segment size and retention of the recorders of the cameras added
+     * after this.
+     */
+    public void setSegments(final int segmentSize, final long retention) {
+        mSegmentSize = segmentSize;
+        mRetention = retention;
+    }
+
+    /**
+     * Cameras added after this record into single files.
+     */
+    public void setStreamFormat(final boolean stream) {
+        mStreamFormat = stream;
+    }
+
+    public void add(final String spec,
+                    final File directory,
+                    final long minDelay) throws IOException {
+        final String[] parts = spec.split(":");
+        final String host = parts[0];
+        final int port = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_PORT;
+        final String size = parts.length > 2 ? parts[2] : null;
+        final String name = host + "_" + port;
+
+        final Recorder recorder = mStreamFormat
+                                  ? new StreamRecorder(new File(directory, name + ".frames"))
+                                  : new SegmentedRecorder(new File(directory, name), mSegmentSize, mRetention);
+        final Capture capture = new Capture(name, host, port, size, recorder);
+        capture.mRequester.setMinDelay(minDelay);
+        mCaptures.add(capture);
+        mEngine.add(capture.mCamera);
+    }
+
+    /**
+     * Disconnects all the cameras and closes the files. The removal runs on
+     * the engine threads, the files are closed after it so no frame comes
+     * while closing.
+     */
+    public void stop() {
+        final CountDownLatch removed = new CountDownLatch(mCaptures.size());
+        for (Capture capture : mCaptures)
+        {
+            mEngine.remove(capture.mCamera, removed);
+        }
+
+        try
+        {
+            if (!removed.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+            {
+                logger.warning("The engine didn't remove the cameras, closing anyway");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Capture capture : mCaptures)
+        {
+            capture.close();
+        }
+    }
+
+    /**
+     * One camera being recorded.
+     */
+    private static final class Capture implements RemoteCamera.Listener {
+
+        private final String mName;
+        private final String mSize;
+        private final Recorder mRecorder;
+        private final RemoteCamera mCamera;
+        private final FrameRequester mRequester;
+        private long mFrames = 0;
+        private long mBytes = 0;
+        private volatile boolean mClosed = false;
+
+        Capture(final String name,
+                final String host,
+                final int port,
+                final String size,
+                final Recorder recorder) {
+            mName = name;
+            mSize = size;
+            mRecorder = recorder;
+            mCamera = new RemoteCamera(this, host, port);
+            mRequester = new FrameRequester(mCamera);
+            mRequester.setWindow(FrameRequester.AUTO_WINDOW);
+            mRequester.setStats(mCamera.getStats());
+            mCamera.getStats().register(host + ":" + port);
+        }
+
+        @Override
+        public void onConnected(CameraSource rc) {
+            mRequester.resume();
+            try
+            {
+                rc.request_sizelist();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Just connected but cannot request things... then?", ex);
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraSource rc) {
+            mRequester.pause();
+            logger.log(Level.INFO, "{0} disconnected, {1} frames, {2} bytes recorded",
+                       new Object[] { mName, mFrames, mBytes });
+        }
+
+        @Override
+        public void onVideoReady(CameraSource rc, CameraInfo info) {
+            logger.log(Level.INFO, "{0} recording {1}", new Object[] { mName, info });
+            try
+            {
+                mRecorder.videoInfo(System.currentTimeMillis(), info);
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Cannot record " + mName, ex);
+            }
+            mRequester.reset();
+            mRequester.request_pic();
+        }
+
+        @Override
+        public void onSizeListReceived(CameraSource rc, String[] sizes) {
+            logger.log(Level.INFO, "{0} sizes: {1}", new Object[] { mName, Arrays.toString(sizes) });
+            if (sizes.length == 0)
+            {
+                return;
+            }
+
+            try
+            {
+                rc.request_beginvideo(mSize != null ? mSize : sizes[0]);
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Couldn't request begin video... what to do now?", ex);
+            }
+        }
+
+        @Override
+        public void onFrameReceived(CameraSource rc, FrameBuffer frame) {
+            if (mClosed)
+            {
+                return;
+            }
+
+            mRequester.onFrameReceived();
+            try
+            {
+                mRecorder.frame(System.currentTimeMillis(), frame);
+                mFrames++;
+                mBytes += frame.length();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Cannot record " + mName, ex);
+            }
+        }
+
+        @Override
+        public void onFrameSkipped(CameraSource rc, int length) {
+            mRequester.onFrameReceived();
+        }
+
+        void close() {
+            mClosed = true;
+            mRequester.shutdown();
+            mCamera.getStats().unregister();
+            try
+            {
+                mRecorder.close();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Cannot close recording of " + mName, ex);
+            }
+        }
+    }
+
+    /**
+     * @param args see class documentation
+     */
+    public static void main(String args[]) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS | %4$s %3$s: %5$s %6$s%n");
+
+        File directory = new File("recordings");
+        long minDelay = 66;
+        long seconds = 0;
+        int segmentSize = SegmentedRecorder.DEFAULT_SEGMENT_SIZE;
+        long retention = 0;
+        boolean stream = false;
+        final List<String> cameras = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-o":
+                    directory = new File(args[++i]);
+                    break;
+                case "-delay":
+                    minDelay = Long.parseLong(args[++i]);
+                    break;
+                case "-t":
+                    seconds = Long.parseLong(args[++i]);
+                    break;
+                case "-segment":
+                    segmentSize = Integer.parseInt(args[++i]) * 1024 * 1024;
+                    break;
+                case "-retention":
+                    retention = Long.parseLong(args[++i]) * 1024 * 1024;
+                    break;
+                case "-stream":
+                    stream = true;
+                    break;
+                default:
+                    cameras.add(args[i]);
+            }
+        }
+
+        if (cameras.isEmpty())
+        {
+            System.err.println("Usage: HeadlessRecorder [-o dir] [-delay ms] [-t seconds] [-segment MB] [-retention MB] [-stream] host:port[:WxH] ...");
+            System.exit(1);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        final CameraEngine engine = new CameraEngine(Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+        final HeadlessRecorder recorder = new HeadlessRecorder(engine);
+        recorder.setSegments(segmentSize, retention);
+        recorder.setStreamFormat(stream);
+        for (String camera : cameras)
+        {
+            recorder.add(camera, directory, minDelay);
+        }
+
+        final Thread stopper = new Thread(() -> {
+            recorder.stop();
+            engine.shutdown();
+        }, "HeadlessRecorder-stop");
+
+        if (seconds > 0)
+        {
+            Thread.sleep(seconds * 1000);
+            stopper.run();
+        }
+        else
+        {
+            Runtime.getRuntime().addShutdownHook(stopper);
+            Thread.currentThread().join();
+        }
+    }
+}
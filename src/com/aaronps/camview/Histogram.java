@@ -0,0 +1,108 @@
+package com.aaronps.camview;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of positive values, like durations in nanoseconds, for
+ * percentiles.
+ * <p>
+ * Buckets are logarithmic with {@link #SUB_BUCKETS} linear steps per power of
+ * two, so the values are known within ~6%. Recording is lock free and doesn't
+ * allocate, it can be done from any thread while others read.
+ *
+ * @author krom
+ */
+public final class Histogram {
+
+    public static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+
+    // values up to 2^MAX_BITS, ~18 minutes in nanoseconds
+    private static final int MAX_BITS = 40;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray((MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS);
+
+    public void record(final long value) {
+        mCounts.incrementAndGet(bucket(value));
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++)
+        {
+            mCounts.set(i, 0);
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < mCounts.length(); i++)
+        {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param p from 0 to 1, 0.99 is the 99th percentile.
+     * @return the upper limit of the bucket holding that percentile, 0 if
+     * empty.
+     */
+    public long getPercentile(final double p) {
+        final long count = getCount();
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++)
+        {
+            seen += mCounts.get(i);
+            if (seen >= rank)
+            {
+                return upperLimit(i);
+            }
+        }
+        return upperLimit(mCounts.length() - 1);
+    }
+
+    /**
+     * Adds the counts of the other histogram to this one.
+     */
+    public void add(final Histogram other) {
+        for (int i = 0; i < mCounts.length(); i++)
+        {
+            mCounts.addAndGet(i, other.mCounts.get(i));
+        }
+    }
+
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS)
+        {
+            return value < 0 ? 0 : (int) value;
+        }
+
+        final int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (bits > MAX_BITS)
+        {
+            return (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS - 1;
+        }
+
+        // the SUB_BITS bits below the top one select the sub bucket
+        final int shift = bits - SUB_BITS - 1;
+        final int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperLimit(final int bucket) {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
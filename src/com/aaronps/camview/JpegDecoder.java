@@ -0,0 +1,222 @@
+package com.aaronps.camview;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Jpeg decoding for one camera that doesn't allocate per frame.
+ * <p>
+ * ImageIO.read looks up a reader, wraps the data in new streams and creates
+ * a new image for every frame. This keeps one reader and one input stream
+ * over the frame array, and decodes into three destination images given with
+ * ImageReadParam.setDestination. The caller tells which ones are in use, the
+ * one shown and the one being painted, and the frame goes into another, so
+ * a frame is never overwritten while it is drawn. New images are created
+ * only when the decoded size changes.
+ * <p>
+ * Not thread safe, use it from one thread at a time, the FrameDecoder of the
+ * view does that.
+ *
+ * @author krom
+ */
+final class JpegDecoder {
+
+    // the reader writes the rows in band order, this puts blue first so a
+    // view of a 3BYTE_BGR image with the bands in memory order gets its bytes
+    private static final int[] BGR_BANDS = { 2, 1, 0 };
+    private static final int[] IN_ORDER = { 0, 1, 2 };
+
+    private final ImageReader mReader;
+    private final ImageReadParam mParam;
+    private final FrameInputStream mStream = new FrameInputStream();
+
+    private final BufferedImage[] mImages = new BufferedImage[3];
+    private final BufferedImage[] mTargets = new BufferedImage[3];
+
+    private final Rectangle mParamRegion = new Rectangle();
+
+    JpegDecoder() throws IOException {
+        final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+        if (!readers.hasNext())
+        {
+            throw new IOException("No jpeg reader");
+        }
+
+        mReader = readers.next();
+        mParam = mReader.getDefaultReadParam();
+    }
+
+    /**
+     * Sets the frame to decode, the header is read so the size is known. The
+     * array is used until the next frame.
+     */
+    void setInput(final byte[] array, final int offset, final int length) {
+        mStream.setData(array, offset, length);
+        mReader.setInput(mStream, true, true);
+    }
+
+    int getWidth() throws IOException {
+        return mReader.getWidth(0);
+    }
+
+    int getHeight() throws IOException {
+        return mReader.getHeight(0);
+    }
+
+    /**
+     * Decodes a region of the frame taking one pixel every step.
+     *
+     * @param shown image returned before that is still in use, not written.
+     * @param painting another one in use, may be null.
+     * @return the image, not written while it is given as shown or painting.
+     */
+    BufferedImage decode(final Rectangle region,
+                         final int step,
+                         final BufferedImage shown,
+                         final BufferedImage painting) throws IOException {
+        final int w = (region.width + step - 1) / step;
+        final int h = (region.height + step - 1) / step;
+
+        if (!region.equals(mParamRegion))
+        {
+            mParam.setSourceRegion(region);
+            mParamRegion.setBounds(region);
+        }
+        mParam.setSourceSubsampling(step, step, 0, 0);
+
+        int index = 0;
+        while (mImages[index] != null && (mImages[index] == shown || mImages[index] == painting))
+        {
+            index++;
+        }
+        final boolean reused = mImages[index] != null;
+
+        try
+        {
+            return decodeInto(index, w, h);
+        }
+        catch (IIOException | IllegalArgumentException e)
+        {
+            // the images may be of another type than the frame (gray, cmyk),
+            // try once more with new ones.
+            if (!reused)
+            {
+                throw e;
+            }
+            mImages[index] = null;
+            mTargets[index] = null;
+            return decodeInto(index, w, h);
+        }
+    }
+
+    private BufferedImage decodeInto(final int index, final int w, final int h) throws IOException {
+        BufferedImage bi = mImages[index];
+        if (bi == null || bi.getWidth() != w || bi.getHeight() != h)
+        {
+            bi = mReader.getImageTypes(0).next().createBufferedImage(w, h);
+            mImages[index] = bi;
+            mTargets[index] = target(bi);
+        }
+
+        mParam.setSourceBands(bi.getType() == BufferedImage.TYPE_3BYTE_BGR ? BGR_BANDS : null);
+        mParam.setDestination(mTargets[index]);
+        try
+        {
+            mReader.read(0, mParam);
+        }
+        finally
+        {
+            mParam.setDestination(null);
+        }
+
+        return bi;
+    }
+
+    /**
+     * The reader copies each decoded row into the destination with setRect,
+     * into a 3BYTE_BGR image (what it gives for color frames) the bands are
+     * not in memory order so every row goes through a new array. Drawing an
+     * image with the bands in order is much slower though, so the reader
+     * writes blue first into an in order view of the same pixels and the
+     * 3BYTE_BGR image is what is shown.
+     */
+    private BufferedImage target(final BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR)
+        {
+            return image;
+        }
+
+        final WritableRaster raster = Raster.createInterleavedRaster(
+                image.getRaster().getDataBuffer(), image.getWidth(), image.getHeight(),
+                image.getWidth() * 3, 3, IN_ORDER, null);
+        return new BufferedImage(image.getColorModel(), raster, false, null);
+    }
+
+    /**
+     * ImageInputStream over a part of an array, it can be pointed to another
+     * one instead of creating a new stream.
+     */
+    private static final class FrameInputStream extends ImageInputStreamImpl {
+
+        private byte[] mArray;
+        private int mOffset;
+        private int mLength;
+
+        void setData(final byte[] array, final int offset, final int length) {
+            mArray = array;
+            mOffset = offset;
+            mLength = length;
+            streamPos = 0;
+            flushedPos = 0;
+            bitOffset = 0;
+        }
+
+        @Override
+        public int read() {
+            bitOffset = 0;
+            if (streamPos >= mLength)
+            {
+                return -1;
+            }
+            return mArray[mOffset + (int) streamPos++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (off < 0 || len < 0 || off + len > b.length)
+            {
+                throw new IndexOutOfBoundsException();
+            }
+
+            bitOffset = 0;
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            final int n = (int) Math.min(len, mLength - streamPos);
+            if (n <= 0)
+            {
+                return -1;
+            }
+
+            System.arraycopy(mArray, mOffset + (int) streamPos, b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return mLength;
+        }
+    }
+}
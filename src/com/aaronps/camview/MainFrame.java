@@ -5,14 +5,21 @@
  */
 package com.aaronps.camview;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.AbstractAction;
+import javax.swing.InputMap;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
+import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 
 /**
@@ -24,11 +31,33 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
     private static final Logger logger = Logger.getLogger("MainFrame");
     private static final String VERSION = "0.6";
 
-    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
-    private Future<?> mCameraFuture;
+    /**
+     * Pic requests in flight, 0 means automatic, set with -Dcamview.window=N
+     */
+    private static final int REQUEST_WINDOW = Integer.getInteger("camview.window", FrameRequester.AUTO_WINDOW);
+
+    /**
+     * Megabytes of recent frames kept for time shifting, 0 disables it, set
+     * with -Dcamview.dvr.budget=N
+     */
+    private static final int DVR_BUDGET = Integer.getInteger("camview.dvr.budget", 32);
+    private static final int DVR_MAX_FRAMES = 8192;
+
+    private final ExecutorService mDecoderPool = FrameDecoder.newDecoderPool(1);
+    private final FrameDecoder mFrameDecoder;
+    private final FrameRing mFrameRing;
+    private CameraEngine mEngine;
     private RemoteCamera mRemoteCamera;
+    private PlaybackCamera mPlayback;
+    // the remote camera or the playback, whichever is open
+    private volatile CameraSource mSource;
     private FrameRequester mFrameRequester;
     private boolean mDidConnect = false;
+
+    // the size list item that lets AutoResolution choose
+    private static final String AUTO_SIZE = "Auto";
+    private volatile String[] mSizes = new String[0];
+    private volatile AutoResolution mAutoResolution;
     
     
     /**
@@ -36,6 +65,196 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
      */
     public MainFrame() {
         initComponents();
+        mFrameDecoder = new FrameDecoder(mCameraView, mDecoderPool);
+        installViewFocus();
+
+        if (DVR_BUDGET > 0)
+        {
+            mFrameRing = new FrameRing(DVR_BUDGET * 1024 * 1024, DVR_MAX_FRAMES);
+            mCameraView.setTimeShift(mFrameRing, mFrameDecoder);
+            installTimeShiftKeys();
+        }
+        else
+        {
+            mFrameRing = null;
+        }
+
+        installOverlayKey();
+        installZoomKeys();
+        installOpenKey();
+        mCameraView.setDecodeToViewSize(true);
+    }
+
+    /**
+     * Plus and minus zoom in and out of the center, 0 shows the whole frame
+     * again. Only the zoomed part is decoded. The keys work when the video has
+     * the focus, see installViewFocus.
+     */
+    private void installZoomKeys() {
+        final InputMap keys = mCameraView.getInputMap(JComponent.WHEN_FOCUSED);
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, 0), "zoom-in");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_ADD, 0), "zoom-in");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, 0), "zoom-out");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_SUBTRACT, 0), "zoom-out");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_0, 0), "zoom-reset");
+
+        mCameraView.getActionMap().put("zoom-in", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mCameraView.zoom(1.5);
+            }
+        });
+        mCameraView.getActionMap().put("zoom-out", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mCameraView.zoom(1 / 1.5);
+            }
+        });
+        mCameraView.getActionMap().put("zoom-reset", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mCameraView.resetZoom();
+            }
+        });
+    }
+
+    /**
+     * Ctrl+O opens a recording made by HeadlessRecorder, it is played instead
+     * of a camera.
+     */
+    private void installOpenKey() {
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+                .put(KeyStroke.getKeyStroke(KeyEvent.VK_O, KeyEvent.CTRL_DOWN_MASK), "open-recording");
+        getRootPane().getActionMap().put("open-recording", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final JFileChooser chooser = new JFileChooser();
+                chooser.setDialogTitle("Open recording");
+                chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                if (chooser.showOpenDialog(MainFrame.this) == JFileChooser.APPROVE_OPTION)
+                {
+                    openPlayback(chooser.getSelectedFile());
+                }
+            }
+        });
+    }
+
+    /**
+     * Plays a recording directory like if it was a camera: it "connects", the
+     * size list has the recorded size and Play starts it. Disconnect closes
+     * it. Whatever was open is closed first.
+     */
+    public void openPlayback(final File directory) {
+        if (mSource != null)
+        {
+            mDisconnectButtonActionPerformed(null);
+        }
+
+        try
+        {
+            mPlayback = new PlaybackCamera(this, directory);
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.SEVERE, "Cannot open the recording " + directory, ex);
+            return;
+        }
+
+        mSource = mPlayback;
+        mDidConnect = false;
+        mConnectButton.setEnabled(false);
+        mDisconnectButton.setEnabled(true);
+
+        // pic requests are ignored, but the callbacks are the same
+        mFrameRequester = new FrameRequester(mPlayback);
+        mFrameDecoder.setStats(null);
+        mCameraView.setStats(null);
+
+        mPlayback.start();
+    }
+
+    /**
+     * F2 shows and hides the numbers over the video.
+     */
+    private void installOverlayKey() {
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+                .put(KeyStroke.getKeyStroke(KeyEvent.VK_F2, 0), "overlay-toggle");
+        getRootPane().getActionMap().put("overlay-toggle", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mCameraView.setOverlayVisible(!mCameraView.isOverlayVisible());
+            }
+        });
+    }
+
+    /**
+     * The video keys are bound to the view, not to the window, or typing in
+     * the text fields would trigger them. Clicking the video gives it the
+     * focus.
+     */
+    private void installViewFocus() {
+        mCameraView.setFocusable(true);
+        mCameraView.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                mCameraView.requestFocusInWindow();
+            }
+        });
+    }
+
+    /**
+     * Space pauses and goes back to live, left and right step through the
+     * recent frames (ten at a time with shift), end goes live. Only when the
+     * video has the focus.
+     */
+    private void installTimeShiftKeys() {
+        final InputMap keys = mCameraView.getInputMap(JComponent.WHEN_FOCUSED);
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_SPACE, 0), "timeshift-toggle");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_LEFT, 0), "timeshift-back");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_RIGHT, 0), "timeshift-forward");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_LEFT, KeyEvent.SHIFT_DOWN_MASK), "timeshift-back10");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_RIGHT, KeyEvent.SHIFT_DOWN_MASK), "timeshift-forward10");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_END, 0), "timeshift-live");
+
+        mCameraView.getActionMap().put("timeshift-toggle", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (mCameraView.isLive())
+                {
+                    mCameraView.scrub(0);
+                }
+                else
+                {
+                    mCameraView.goLive();
+                }
+            }
+        });
+        mCameraView.getActionMap().put("timeshift-back", new ScrubAction(-1));
+        mCameraView.getActionMap().put("timeshift-forward", new ScrubAction(1));
+        mCameraView.getActionMap().put("timeshift-back10", new ScrubAction(-10));
+        mCameraView.getActionMap().put("timeshift-forward10", new ScrubAction(10));
+        mCameraView.getActionMap().put("timeshift-live", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mCameraView.goLive();
+            }
+        });
+    }
+
+    private final class ScrubAction extends AbstractAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mFrames;
+
+        ScrubAction(final int frames) {
+            mFrames = frames;
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            mCameraView.scrub(mFrames);
+        }
     }
 
     /**
@@ -215,14 +434,36 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
 
     private void mConnectButtonActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mConnectButtonActionPerformed
     {//GEN-HEADEREND:event_mConnectButtonActionPerformed
-        if ( mRemoteCamera == null )
+        if ( mEngine == null )
+        {
+            try
+            {
+                mEngine = new CameraEngine(1);
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.SEVERE, "Cannot start the camera engine", ex);
+                return;
+            }
+        }
+
+        if ( mSource == null )
         {
             mDidConnect = false;
             mRemoteCamera = new RemoteCamera(this, mIpTextField.getText(), Integer.parseInt(mPortTextField.getText()));
+            mSource = mRemoteCamera;
             mConnectButton.setEnabled(false);
             mDisconnectButton.setEnabled(true);
-            mCameraFuture = mExecutor.submit(mRemoteCamera);
             mFrameRequester = new FrameRequester(mRemoteCamera);
+            mFrameRequester.setWindow(REQUEST_WINDOW);
+
+            final CameraStats stats = mRemoteCamera.getStats();
+            stats.register(mIpTextField.getText() + ":" + mPortTextField.getText());
+            mFrameRequester.setStats(stats);
+            mFrameDecoder.setStats(stats);
+            mCameraView.setStats(stats);
+
+            mEngine.add(mRemoteCamera);
         }
     }//GEN-LAST:event_mConnectButtonActionPerformed
 
@@ -233,9 +474,26 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
         
         if ( mRemoteCamera != null )
         {
-            mCameraFuture.cancel(true); // this should cause disconenct... NOOOOO, if the camera wasn't connected!
+            // onDisconnected follows only if it was connected, see below
+            mEngine.remove(mRemoteCamera);
+            mFrameRequester.shutdown();
+            mRemoteCamera.getStats().unregister();
             mRemoteCamera = null;
-            
+            mAutoResolution = null;
+        }
+
+        if ( mPlayback != null )
+        {
+            // onDisconnected always comes, from the playback thread
+            mPlayback.stop();
+            mFrameRequester.shutdown();
+            mPlayback = null;
+        }
+
+        if ( mSource != null )
+        {
+            mSource = null;
+
             if ( !mDidConnect )
             {
                 // this is needed to reenable the connect button in case the
@@ -280,6 +538,21 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
             
             mVideoSizesCombo.setEnabled(false);
             mPlayButton.setText("Stop");
+
+            if (AUTO_SIZE.equals(selectedSize))
+            {
+                final AutoResolution auto = new AutoResolution(mSource, mCameraView, mRemoteCamera.getStats());
+                try
+                {
+                    logger.info("Auto size: " + auto.start(mSizes));
+                }
+                catch (IOException ex)
+                {
+                    logger.log(Level.SEVERE, "Couldn't request begin video... what to do now?", ex);
+                }
+                mAutoResolution = auto;
+                return;
+            }
             
             final String[] parts = selectedSize.split("x");
             final int w = Integer.parseInt(parts[0]), h = Integer.parseInt(parts[1]);
@@ -289,7 +562,7 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
             
             try
             {
-                mRemoteCamera.request_beginvideo(selectedSize);
+                mSource.request_beginvideo(selectedSize);
             }
             catch (IOException ex)
             {
@@ -300,9 +573,14 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
         {
             mVideoSizesCombo.setEnabled(true);
             mPlayButton.setText("Play");
+            if (mAutoResolution != null)
+            {
+                mAutoResolution.stop();
+                mAutoResolution = null;
+            }
             try
             {
-                mRemoteCamera.request_stopvideo();
+                mSource.request_stopvideo();
             }
             catch (IOException ex)
             {
@@ -314,8 +592,14 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
     private void mFPSLimitButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mFPSLimitButtonActionPerformed
         if ( mFrameRequester != null )
         {
-            int limit = Math.max(0, Integer.parseInt(mFPSLimitTextField.getText()));
+            // "auto" adapts the rate, "auto 33" too but up to that limit
+            final String[] parts = mFPSLimitTextField.getText().trim().split("\\s+");
+            final boolean adaptive = parts[0].equalsIgnoreCase("auto");
+            final String value = adaptive ? (parts.length > 1 ? parts[1] : "0") : parts[0];
+
+            int limit = Math.max(0, Integer.parseInt(value));
             mFrameRequester.setMinDelay(limit);
+            mFrameRequester.setAdaptive(adaptive);
         }
     }//GEN-LAST:event_mFPSLimitButtonActionPerformed
 
@@ -323,6 +607,15 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
      * @param args the command line arguments
      */
     public static void main(String args[]) {
+        File playback = null;
+        for (int n = 0; n < args.length; n++)
+        {
+            if ( args[n].equals("--playback") && n + 1 < args.length )
+            {
+                playback = new File(args[++n]);
+            }
+        }
+        final File recording = playback;
         
 //        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS %4$s %3$s | %5$s%n");
 //        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS | %4$s %2$s: %5$s %6$s%n");
@@ -354,7 +647,12 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
         /* Create and display the form */
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
-                new MainFrame().setVisible(true);
+                final MainFrame frame = new MainFrame();
+                frame.setVisible(true);
+                if ( recording != null )
+                {
+                    frame.openPlayback(recording);
+                }
             }
         });
     }
@@ -379,7 +677,7 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
     // End of variables declaration//GEN-END:variables
 
     @Override
-    public void onConnected(RemoteCamera rc)
+    public void onConnected(CameraSource rc)
     {
         logger.info("Connected");
         mDidConnect = true;
@@ -395,13 +693,19 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
     }
 
     @Override
-    public void onDisconnected(RemoteCamera rc)
+    public void onDisconnected(CameraSource rc)
     {
         logger.info("Disconnected");
+        final CameraSource source = mSource;
+        if ( source != null && source != rc )
+        {
+            // late from the one closed when opening a recording
+            return;
+        }
         mDidConnect = false;
         
         SwingUtilities.invokeLater(() -> {
-            if ( mRemoteCamera == null )
+            if ( mSource == null )
             {
                 mDisconnectButton.setEnabled(false);
                 mConnectButton.setEnabled(true);
@@ -417,21 +721,37 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
         });
         
         mFrameRequester.pause();
+        mFrameDecoder.clear();
+        logger.log(Level.INFO, "Frames decoded: {0}, dropped: {1}, {2}",
+                   new Object[] { mFrameDecoder.getDecodedCount(),
+                                  mFrameDecoder.getDroppedCount(),
+                                  FramePool.getDefault() });
     }
 
     @Override
-    public void onVideoReady(RemoteCamera rc, CameraInfo info)
+    public void onVideoReady(CameraSource rc, CameraInfo info)
     {
         logger.info("Info received: " + info);
+        mCameraView.setVideoInfo(info);
+        if (mFrameRing != null)
+        {
+            mFrameRing.setVideoInfo(info);
+        }
+        mFrameRequester.reset();
         mFrameRequester.request_pic();
     }
 
     @Override
-    public void onSizeListReceived(RemoteCamera rc, String[] sizes)
+    public void onSizeListReceived(CameraSource rc, String[] sizes)
     {
         logger.log(Level.INFO, "Sizes received: {0}", Arrays.toString(sizes));
+        mSizes = sizes;
         SwingUtilities.invokeLater(() -> {
             mVideoSizesCombo.removeAllItems();
+            if ( rc instanceof RemoteCamera )
+            {
+                mVideoSizesCombo.addItem(AUTO_SIZE);
+            }
             for ( String s: sizes )
             {
                 mVideoSizesCombo.addItem(s);
@@ -444,9 +764,25 @@ public class MainFrame extends javax.swing.JFrame implements RemoteCamera.Listen
     }
 
     @Override
-    public void onFrameReceived(RemoteCamera rc, ByteBuffer frame)
+    public void onFrameReceived(CameraSource rc, FrameBuffer frame)
     {
-        mFrameRequester.request_pic();
-        mCameraView.updatePic(frame);
+        mFrameRequester.onFrameReceived();
+        if (mFrameRing != null)
+        {
+            mFrameRing.add(System.currentTimeMillis(), frame);
+        }
+        mFrameDecoder.submit(frame);
+
+        final AutoResolution auto = mAutoResolution;
+        if (auto != null)
+        {
+            auto.onFrame();
+        }
+    }
+
+    @Override
+    public void onFrameSkipped(CameraSource rc, int length)
+    {
+        mFrameRequester.onFrameReceived();
     }
 }
@@ -0,0 +1,314 @@
+package com.aaronps.camview;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * NV21 to BufferedImage.TYPE_INT_RGB converter.
+ * <p>
+ * Same results as {@link CameraView#nv21ToRGB} within ±1 per channel, but
+ * using lookup tables and integer math only. Big images are split in bands of
+ * rows converted in parallel on a fork-join pool.
+ * <p>
+ * The rows are converted by a {@link Kernel}, when running on a JVM with the
+ * <code>jdk.incubator.vector</code> module (add it with
+ * <code>--add-modules jdk.incubator.vector</code>) and a cpu with vectors of
+ * 256 bits or more a SIMD kernel is used, otherwise the scalar one.
+ * <code>-Dcamview.vector=false</code> forces the scalar kernel.
+ *
+ * @author krom
+ */
+public final class Nv21Converter {
+
+    private static final Logger logger = Logger.getLogger("Nv21Converter");
+
+    /**
+     * Converts the rows from <code>pair0 * 2</code> to
+     * <code>pair1 * 2</code>, same parameters as convertRows.
+     */
+    interface Kernel {
+
+        void convertRows(final byte[] src,
+                         final int srcOffset,
+                         final int[] dst,
+                         final int width,
+                         final int height,
+                         final int pair0,
+                         final int pair1);
+    }
+
+    // compiled from src-vector only when building with a jdk that has it.
+    private static final String VECTOR_KERNEL = "com.aaronps.camview.VectorNv21Kernel";
+
+    /**
+     * Images with less pixels than this are converted on the calling thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 128 * 1024;
+
+    /**
+     * Approximate number of pixels converted by each task.
+     */
+    private static final int BAND_PIXELS = 32 * 1024;
+
+    // the chroma contributions, red and blue match the float version exactly,
+    // green is 16.16 fixed point.
+    static final int[] R_V = new int[256];
+    static final int[] B_U = new int[256];
+    static final int[] G_U = new int[256];
+    static final int[] G_V = new int[256];
+
+    // y + chroma goes from -227 to 482, these clamp it and shift it into its
+    // place in the pixel.
+    static final int CLAMP_OFFSET = 256;
+    static final int[] CLAMP_R = new int[768];
+    static final int[] CLAMP_G = new int[768];
+    static final int[] CLAMP_B = new int[768];
+
+    static
+    {
+        for (int n = 0; n < 256; n++)
+        {
+            final int c = n - 128;
+            R_V[n] = (int) (1.402f * c);
+            B_U[n] = (int) (1.772f * c);
+            G_U[n] = Math.round(0.344f * c * 65536);
+            G_V[n] = Math.round(0.714f * c * 65536);
+        }
+
+        for (int n = 0; n < CLAMP_R.length; n++)
+        {
+            final int c = Math.max(0, Math.min(255, n - CLAMP_OFFSET));
+            CLAMP_R[n] = c << 16;
+            CLAMP_G[n] = c << 8;
+            CLAMP_B[n] = c;
+        }
+    }
+
+    private static final ForkJoinPool sPool = ForkJoinPool.commonPool();
+
+    private static final Kernel sKernel = loadKernel();
+
+    private static Kernel loadKernel() {
+        if (Boolean.parseBoolean(System.getProperty("camview.vector", "true")))
+        {
+            try
+            {
+                final Class<?> vector = Class.forName(VECTOR_KERNEL);
+                if (!(Boolean) vector.getDeclaredMethod("isSupported").invoke(null))
+                {
+                    logger.info("Vectors narrower than 256 bits, using scalar nv21 kernel");
+                }
+                else
+                {
+                    final Kernel kernel = (Kernel) vector.getDeclaredConstructor().newInstance();
+                    logger.info("Using vector nv21 kernel");
+                    return kernel;
+                }
+            }
+            catch (ClassNotFoundException | NoClassDefFoundError | UnsupportedClassVersionError e)
+            {
+                // not compiled, older jvm or the module is not there
+                logger.log(Level.FINE, "Vector nv21 kernel not available", e);
+            }
+            catch (ReflectiveOperationException | LinkageError e)
+            {
+                // there but broken
+                logger.log(Level.WARNING, "Vector nv21 kernel failed, using the scalar one", e);
+            }
+        }
+
+        return Nv21Converter::convertRows;
+    }
+
+    private Nv21Converter() {
+    }
+
+    /**
+     * Converts a nv21 frame, in parallel if it is big enough.
+     *
+     * @param src nv21 format source array
+     * @param srcOffset where the frame starts in src
+     * @param dst destination array, width * height
+     * @param width image width, even
+     * @param height image height, even
+     */
+    public static void convert(final byte[] src,
+                               final int srcOffset,
+                               final int[] dst,
+                               final int width,
+                               final int height) {
+        final int pairs = height / 2;
+
+        if (width * height < PARALLEL_THRESHOLD)
+        {
+            sKernel.convertRows(src, srcOffset, dst, width, height, 0, pairs);
+        }
+        else
+        {
+            final int bandPairs = Math.max(1, BAND_PIXELS / (width * 2));
+            sPool.invoke(new Band(src, srcOffset, dst, width, height, 0, pairs, bandPairs));
+        }
+    }
+
+    /**
+     * Converts a nv21 frame taking one pixel every <code>step</code> in each
+     * direction, the cost depends on the destination size only.
+     *
+     * @param src nv21 format source array
+     * @param srcOffset where the frame starts in src
+     * @param dst destination array, (width / step) * (height / step)
+     * @param width source image width, even
+     * @param height source image height, even
+     * @param step subsampling, 1 or more
+     */
+    public static void convertSubsampled(final byte[] src,
+                                         final int srcOffset,
+                                         final int[] dst,
+                                         final int width,
+                                         final int height,
+                                         final int step) {
+        convertRegion(src, srcOffset, dst, width, height, 0, 0, width, height, step);
+    }
+
+    /**
+     * Like convertSubsampled but only the pixels of a region of the frame,
+     * for digital zoom.
+     *
+     * @param src nv21 format source array
+     * @param srcOffset where the frame starts in src
+     * @param dst destination array, (rw / step) * (rh / step)
+     * @param width source image width, even
+     * @param height source image height, even
+     * @param rx region left, the region must be inside the frame
+     * @param ry region top
+     * @param rw region width
+     * @param rh region height
+     * @param step subsampling, 1 or more
+     */
+    public static void convertRegion(final byte[] src,
+                                     final int srcOffset,
+                                     final int[] dst,
+                                     final int width,
+                                     final int height,
+                                     final int rx,
+                                     final int ry,
+                                     final int rw,
+                                     final int rh,
+                                     final int step) {
+        final int dw = rw / step, dh = rh / step;
+        final int uvStart = srcOffset + width * height;
+        int d = 0;
+
+        for (int dy = 0; dy < dh; dy++)
+        {
+            final int sy = ry + dy * step;
+            final int row = srcOffset + sy * width;
+            final int uv = uvStart + (sy >> 1) * width;
+
+            for (int dx = 0, sx = rx; dx < dw; dx++, sx += step)
+            {
+                final int c = uv + (sx & ~1);
+                final int v = src[c] & 0xff;
+                final int u = src[c + 1] & 0xff;
+                final int y = src[row + sx] & 0xff;
+
+                dst[d++] = CLAMP_R[y + R_V[v] + CLAMP_OFFSET]
+                        | CLAMP_G[y - ((G_U[u] + G_V[v]) >> 16) + CLAMP_OFFSET]
+                        | CLAMP_B[y + B_U[u] + CLAMP_OFFSET];
+            }
+        }
+    }
+
+    /**
+     * Scalar kernel, converts the rows from <code>pair0 * 2</code> to
+     * <code>pair1 * 2</code>, each pair shares the same chroma row.
+     */
+    static void convertRows(final byte[] src,
+                            final int srcOffset,
+                            final int[] dst,
+                            final int width,
+                            final int height,
+                            final int pair0,
+                            final int pair1) {
+        final int uvStart = srcOffset + width * height;
+
+        for (int p = pair0; p < pair1; p++)
+        {
+            final int row0 = p * 2 * width;
+            final int row1 = row0 + width;
+            final int s0 = srcOffset + row0;
+            final int s1 = srcOffset + row1;
+            final int uv = uvStart + p * width;
+
+            for (int x = 0; x < width; x += 2)
+            {
+                final int v = src[uv + x] & 0xff;
+                final int u = src[uv + x + 1] & 0xff;
+
+                final int r = R_V[v] + CLAMP_OFFSET;
+                final int g = CLAMP_OFFSET - ((G_U[u] + G_V[v]) >> 16);
+                final int b = B_U[u] + CLAMP_OFFSET;
+
+                int y = src[s0 + x] & 0xff;
+                dst[row0 + x] = CLAMP_R[y + r] | CLAMP_G[y + g] | CLAMP_B[y + b];
+
+                y = src[s0 + x + 1] & 0xff;
+                dst[row0 + x + 1] = CLAMP_R[y + r] | CLAMP_G[y + g] | CLAMP_B[y + b];
+
+                y = src[s1 + x] & 0xff;
+                dst[row1 + x] = CLAMP_R[y + r] | CLAMP_G[y + g] | CLAMP_B[y + b];
+
+                y = src[s1 + x + 1] & 0xff;
+                dst[row1 + x + 1] = CLAMP_R[y + r] | CLAMP_G[y + g] | CLAMP_B[y + b];
+            }
+        }
+    }
+
+    private static final class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mSrc;
+        private final int mSrcOffset;
+        private final int[] mDst;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mPair0;
+        private final int mPair1;
+        private final int mBandPairs;
+
+        Band(final byte[] src,
+             final int srcOffset,
+             final int[] dst,
+             final int width,
+             final int height,
+             final int pair0,
+             final int pair1,
+             final int bandPairs) {
+            mSrc = src;
+            mSrcOffset = srcOffset;
+            mDst = dst;
+            mWidth = width;
+            mHeight = height;
+            mPair0 = pair0;
+            mPair1 = pair1;
+            mBandPairs = bandPairs;
+        }
+
+        @Override
+        protected void compute() {
+            if (mPair1 - mPair0 <= mBandPairs)
+            {
+                sKernel.convertRows(mSrc, mSrcOffset, mDst, mWidth, mHeight, mPair0, mPair1);
+            }
+            else
+            {
+                final int mid = (mPair0 + mPair1) >>> 1;
+                invokeAll(new Band(mSrc, mSrcOffset, mDst, mWidth, mHeight, mPair0, mid, mBandPairs),
+                          new Band(mSrc, mSrcOffset, mDst, mWidth, mHeight, mid, mPair1, mBandPairs));
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.aaronps.camview;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+/**
+ * Text box with the numbers of a camera drawn over its {@link CameraView}:
+ * fps, decode time, round trip, dropped frames and resolution.
+ * <p>
+ * The values are sampled at most every {@link #SAMPLE_INTERVAL} and the text
+ * is rendered into a cached image only when one of them changes as shown, the
+ * rest of the paints just draw that image, they don't allocate.
+ * <p>
+ * Only used from the Swing thread.
+ *
+ * @author krom
+ */
+final class PerfOverlay {
+
+    private static final long SAMPLE_INTERVAL = 500000000L;
+
+    private static final int MARGIN = 4;
+    private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color BACKGROUND = new Color(0, 0, 0, 160);
+
+    // shown values, the time ones in tenths of millisecond
+    private long mFpsTenths = -1;
+    private long mDecodeTenths = -1;
+    private long mRoundTripTenths = -1;
+    private long mDropped = -1;
+    private int mWidth = -1;
+    private int mHeight = -1;
+
+    private long mSampleTime = 0;
+    private long mSampleFrames = 0;
+
+    private BufferedImage mLayer;
+    private boolean mDirty = true;
+
+    /**
+     * Draws the overlay in the top left corner.
+     *
+     * @param g not rotated or scaled.
+     * @param stats may be null, then only the resolution is known.
+     * @param width width of the frames.
+     * @param height height of the frames.
+     */
+    void draw(final Graphics2D g, final CameraStats stats, final int width, final int height) {
+        final long now = System.nanoTime();
+        if (now - mSampleTime >= SAMPLE_INTERVAL)
+        {
+            sample(now, stats, width, height);
+        }
+
+        if (mDirty || mLayer == null)
+        {
+            render(g);
+            mDirty = false;
+        }
+
+        g.drawImage(mLayer, MARGIN, MARGIN, null);
+    }
+
+    private void sample(final long now, final CameraStats stats, final int width, final int height) {
+        long fps = -1, decode = -1, roundTrip = -1, dropped = -1;
+        if (stats != null)
+        {
+            final long frames = stats.getFramesReceived();
+            if (mSampleTime != 0 && frames >= mSampleFrames)
+            {
+                fps = (frames - mSampleFrames) * 10000000000L / (now - mSampleTime);
+            }
+            mSampleFrames = frames;
+
+            decode = stats.lastDecodeTime() / 100000;
+            roundTrip = stats.lastRoundTrip() / 100000;
+            dropped = stats.getFramesDropped();
+        }
+        mSampleTime = now;
+
+        if (fps != mFpsTenths || decode != mDecodeTenths || roundTrip != mRoundTripTenths
+            || dropped != mDropped || width != mWidth || height != mHeight)
+        {
+            mFpsTenths = fps;
+            mDecodeTenths = decode;
+            mRoundTripTenths = roundTrip;
+            mDropped = dropped;
+            mWidth = width;
+            mHeight = height;
+            mDirty = true;
+        }
+    }
+
+    private void render(final Graphics2D target) {
+        final String[] lines = {
+            "fps     " + tenths(mFpsTenths),
+            "decode  " + tenths(mDecodeTenths) + " ms",
+            "rtt     " + tenths(mRoundTripTenths) + " ms",
+            "dropped " + (mDropped < 0 ? "-" : Long.toString(mDropped)),
+            "size    " + mWidth + "x" + mHeight
+        };
+
+        final FontMetrics fm = target.getFontMetrics(FONT);
+        int textWidth = 0;
+        for (String line : lines)
+        {
+            textWidth = Math.max(textWidth, fm.stringWidth(line));
+        }
+        final int w = textWidth + MARGIN * 2;
+        final int h = fm.getHeight() * lines.length + MARGIN * 2;
+
+        if (mLayer == null || mLayer.getWidth() != w || mLayer.getHeight() != h)
+        {
+            mLayer = target.getDeviceConfiguration().createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+        }
+
+        final Graphics2D g = mLayer.createGraphics();
+        try
+        {
+            g.setComposite(AlphaComposite.Src);
+            g.setColor(BACKGROUND);
+            g.fillRect(0, 0, w, h);
+            g.setComposite(AlphaComposite.SrcOver);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setFont(FONT);
+            g.setColor(Color.WHITE);
+
+            int y = MARGIN + fm.getAscent();
+            for (String line : lines)
+            {
+                g.drawString(line, MARGIN, y);
+                y += fm.getHeight();
+            }
+        }
+        finally
+        {
+            g.dispose();
+        }
+    }
+
+    private static String tenths(final long value) {
+        return value < 0 ? "-" : (value / 10) + "." + (value % 10);
+    }
+}
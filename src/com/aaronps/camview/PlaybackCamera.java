@@ -0,0 +1,399 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays a {@link SegmentedRecorder} directory as if it was the camera, the
+ * frames arrive to the same {@link RemoteCamera.Listener} callbacks.
+ * <p>
+ * The protocol is emulated: {@link #start()} calls onConnected, the size list
+ * has the size of the recording and BeginVideo answers with onVideoReady and
+ * starts playing. Frames come at the recorded pace multiplied by the speed,
+ * pic requests are not needed (they are ignored).
+ * <p>
+ * Besides playing it can pause, step one frame forward or back and seek to a
+ * timestamp, the seek is a binary search on the segments and then on the
+ * segment index.
+ *
+ * @author krom
+ */
+public final class PlaybackCamera implements CameraSource, Runnable {
+
+    private static final Logger logger = Logger.getLogger("PlaybackCamera");
+
+    private final RemoteCamera.Listener mListener;
+    private final String mName;
+    private final SegmentArchive mArchive;
+    private final FramePool mFramePool;
+    private final Thread mThread;
+
+    // guarded by "this", set by the control methods
+    private boolean mSizeListRequested = false;
+    private boolean mVideoRequested = false;
+    private boolean mPlaying = false;
+    private double mSpeed = 1;
+    private int mSteps = 0;
+    private long mSeekTo = -1;
+    private boolean mResync = true;
+
+    // playback thread only
+    private int mSegment = 0;
+    private int mEntry = 0;
+    private CameraInfo mInfo;
+    private long mAnchorNanos;
+    private long mAnchorTimestamp;
+    private long mSequence = 0;
+
+    public PlaybackCamera(final RemoteCamera.Listener listener,
+                          final File directory) throws IOException {
+        this(listener, directory, FramePool.getDefault());
+    }
+
+    public PlaybackCamera(final RemoteCamera.Listener listener,
+                          final File directory,
+                          final FramePool framePool) throws IOException {
+        mListener = listener;
+        mName = directory.getName();
+        mArchive = new SegmentArchive(directory);
+        mFramePool = framePool;
+        mThread = new Thread(this, "PlaybackCamera-" + directory.getName());
+        mThread.setDaemon(true);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops the playback thread, onDisconnected is called from it.
+     */
+    public void stop() {
+        mThread.interrupt();
+    }
+
+    /**
+     * @return the name of the recording directory.
+     */
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    public long getFirstTimestamp() {
+        return mArchive.firstTimestamp();
+    }
+
+    public long getLastTimestamp() {
+        return mArchive.lastTimestamp();
+    }
+
+    /**
+     * Ignored, the frames are sent at the recorded pace.
+     */
+    @Override
+    public void request_pic() {
+    }
+
+    @Override
+    public synchronized void request_sizelist() {
+        mSizeListRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Starts playing, the size is ignored, the recording has the size it
+     * has.
+     */
+    @Override
+    public synchronized void request_beginvideo(final String size) {
+        mVideoRequested = true;
+        mPlaying = true;
+        mResync = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void request_stopvideo() {
+        mPlaying = false;
+        notifyAll();
+    }
+
+    public synchronized void play() {
+        mPlaying = true;
+        mResync = true;
+        notifyAll();
+    }
+
+    public synchronized void pause() {
+        mPlaying = false;
+        notifyAll();
+    }
+
+    public synchronized boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * @param speed 1 is real time, 2 double speed...
+     */
+    public synchronized void setSpeed(final double speed) {
+        if (!(speed > 0))
+        {
+            throw new IllegalArgumentException("Bad speed: " + speed);
+        }
+        mSpeed = speed;
+        mResync = true;
+        notifyAll();
+    }
+
+    public synchronized double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Pauses and shows the next (positive) or previous (negative) frames.
+     */
+    public synchronized void step(final int frames) {
+        mPlaying = false;
+        mSteps += frames;
+        notifyAll();
+    }
+
+    /**
+     * Shows the last frame at or before the timestamp, keeps playing from
+     * there if it was playing.
+     */
+    public synchronized void seek(final long timestamp) {
+        mSeekTo = timestamp;
+        mSteps = 0;
+        mResync = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        logger.info("Start");
+        mListener.onConnected(this);
+        try
+        {
+            loop();
+        }
+        catch (InterruptedException e)
+        {
+            // stopped
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.SEVERE, "Playback failed", e);
+        }
+        finally
+        {
+            mArchive.close();
+            mListener.onDisconnected(this);
+            logger.info("End");
+        }
+    }
+
+    private void loop() throws InterruptedException, IOException {
+        boolean first = true;
+
+        while (!mThread.isInterrupted())
+        {
+            final boolean sizeList;
+            final boolean video;
+            final long seekTo;
+            final int steps;
+            final boolean playing;
+            final boolean resync;
+            final double speed;
+
+            synchronized (this)
+            {
+                // seek and steps wait for the video too
+                while (!mSizeListRequested
+                       && !(mVideoRequested && (mPlaying || mSeekTo >= 0 || mSteps != 0)))
+                {
+                    wait();
+                }
+
+                sizeList = mSizeListRequested;
+                video = mVideoRequested;
+                seekTo = video ? mSeekTo : -1;
+                steps = video ? mSteps : 0;
+                playing = video && mPlaying;
+                resync = mResync;
+                speed = mSpeed;
+
+                mSizeListRequested = false;
+                if (video)
+                {
+                    mSeekTo = -1;
+                    mSteps = 0;
+                    mResync = false;
+                }
+            }
+
+            if (sizeList)
+            {
+                final CameraInfo info = mArchive.info(mSegment);
+                mListener.onSizeListReceived(this, new String[] { info.width + "x" + info.height });
+            }
+
+            if (!video)
+            {
+                continue;
+            }
+
+            if (seekTo >= 0)
+            {
+                mSegment = mArchive.findSegment(seekTo);
+                mEntry = mArchive.findEntry(mSegment, seekTo);
+                deliver();
+            }
+            else if (first)
+            {
+                deliver();
+            }
+            first = false;
+
+            if (steps != 0)
+            {
+                // only the last one is shown
+                boolean moved = false;
+                for (int n = Math.abs(steps); n > 0 && move(steps > 0); n--)
+                {
+                    moved = true;
+                }
+
+                if (moved)
+                {
+                    deliver();
+                }
+                continue;
+            }
+
+            if (!playing)
+            {
+                continue;
+            }
+
+            if (resync || seekTo >= 0)
+            {
+                mAnchorNanos = System.nanoTime();
+                mAnchorTimestamp = mArchive.timestamp(mSegment, mEntry);
+            }
+
+            if (!hasNext())
+            {
+                logger.info("End of recording");
+                pause();
+                continue;
+            }
+
+            final long next = mArchive.timestamp(nextSegment(), nextEntry());
+            final long due = mAnchorNanos + (long) ((next - mAnchorTimestamp) * 1000000L / speed);
+            final long wait = due - System.nanoTime();
+            if (wait > 0)
+            {
+                synchronized (this)
+                {
+                    // anything changing the state wakes it up
+                    if (mPlaying && mSeekTo < 0 && mSteps == 0 && !mSizeListRequested && !mResync)
+                    {
+                        wait(wait / 1000000L, (int) (wait % 1000000L));
+                    }
+                }
+                continue;
+            }
+
+            move(true);
+            deliver();
+        }
+    }
+
+    private boolean hasNext() {
+        return mEntry + 1 < mArchive.frameCount(mSegment)
+               || mSegment + 1 < mArchive.segmentCount();
+    }
+
+    private int nextSegment() {
+        return mEntry + 1 < mArchive.frameCount(mSegment) ? mSegment : mSegment + 1;
+    }
+
+    private int nextEntry() {
+        return mEntry + 1 < mArchive.frameCount(mSegment) ? mEntry + 1 : 0;
+    }
+
+    /**
+     * @return false if there is no frame in that direction.
+     */
+    private boolean move(final boolean forward) {
+        if (forward)
+        {
+            if (!hasNext())
+            {
+                return false;
+            }
+
+            final int segment = nextSegment();
+            mEntry = nextEntry();
+            if (segment != mSegment)
+            {
+                mSegment = segment;
+                mArchive.readAhead(segment + 1);
+            }
+        }
+        else
+        {
+            if (mEntry > 0)
+            {
+                mEntry--;
+            }
+            else if (mSegment > 0)
+            {
+                mSegment--;
+                mEntry = mArchive.frameCount(mSegment) - 1;
+                mArchive.readAhead(mSegment - 1);
+            }
+            else
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deliver() throws IOException {
+        final CameraInfo info = mArchive.info(mSegment);
+        if (mInfo != info)
+        {
+            if (mInfo == null)
+            {
+                mArchive.readAhead(mSegment + 1);
+            }
+
+            if (mInfo == null
+                || mInfo.width != info.width
+                || mInfo.height != info.height
+                || mInfo.type != info.type)
+            {
+                mListener.onVideoReady(this, info);
+            }
+            mInfo = info;
+        }
+
+        final FrameBuffer frame = mArchive.read(mSegment, mEntry, mFramePool);
+        frame.setOrigin(mName, ++mSequence);
+        try
+        {
+            mListener.onFrameReceived(this, frame);
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.aaronps.camview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Incremental parser of the messages sent by the camera, it keeps its state
+ * between calls so it can be fed with whatever arrives from the socket.
+ * <p>
+ * It works on the bytes directly: the commands are matched against the
+ * protocol constants and numbers are parsed in place, a "Pic" message doesn't
+ * create any object besides the FrameBuffer from the pool. "Ready" and
+ * "SizeList" are rare so they don't care.
+ * <p>
+ * <b>Usage</b>
+ * <p>
+ * Read into the receive buffer, flip it, call {@link #parse(ByteBuffer)} and
+ * compact it. While receiving a pic, {@link #payloadTarget()} gives the
+ * buffer where the rest of the pic can be read directly, call
+ * {@link #payloadRead()} after reading into it.
+ *
+ * @author krom
+ */
+final class ProtocolParser {
+
+    private static final Logger logger = Logger.getLogger("ProtocolParser");
+
+    private static final int STATE_LINE = 0;
+    private static final int STATE_PAYLOAD = 1;
+    private static final int STATE_SKIP = 2;
+
+    private final RemoteCamera mCamera;
+    private final RemoteCamera.Listener mListener;
+    private final CameraStats mStats;
+    private final FramePool mFramePool;
+
+    private int mState = STATE_LINE;
+
+    // bytes of the current line already checked for the new line, from the
+    // buffer position.
+    private int mScanned = 0;
+
+    private FrameBuffer mFrame;
+    private int mSkipLength;
+    private int mSkipLeft;
+
+    // pics received in this connection, answers to the requests in order.
+    private long mSequence = 0;
+
+    ProtocolParser(final RemoteCamera camera,
+                   final RemoteCamera.Listener listener,
+                   final FramePool framePool) {
+        mCamera = camera;
+        mListener = listener;
+        mStats = camera.getStats();
+        mFramePool = framePool;
+    }
+
+    /**
+     * Back to the initial state, for a new connection. A partially received
+     * frame is released.
+     */
+    void reset() {
+        if (mFrame != null)
+        {
+            mFrame.release();
+            mFrame = null;
+        }
+        mState = STATE_LINE;
+        mScanned = 0;
+        mSequence = 0;
+    }
+
+    /**
+     * Consumes as much as possible from the buffer, incomplete lines are left
+     * in it.
+     *
+     * @param bb the received data, from position to limit.
+     * @throws IOException on protocol errors
+     */
+    void parse(final ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining())
+        {
+            switch (mState)
+            {
+                case STATE_LINE:
+                {
+                    final byte[] array = bb.array();
+                    final int start = bb.position();
+                    final int end = bb.limit();
+                    int nl = start + mScanned;
+
+                    while (nl < end && array[nl] != 10)
+                    {
+                        nl++;
+                    }
+
+                    if (nl == end)
+                    {
+                        mScanned = end - start;
+                        return;
+                    }
+
+                    mScanned = 0;
+                    bb.position(nl + 1);
+                    handleLine(array, start, nl);
+                    break;
+                }
+                case STATE_PAYLOAD:
+                {
+                    final ByteBuffer dst = mFrame.getByteBuffer();
+                    final int n = Math.min(bb.remaining(), dst.remaining());
+
+                    dst.put(bb.array(), bb.position(), n);
+                    bb.position(bb.position() + n);
+                    payloadRead();
+                    break;
+                }
+                case STATE_SKIP:
+                {
+                    final int n = Math.min(bb.remaining(), mSkipLeft);
+                    bb.position(bb.position() + n);
+                    mSkipLeft -= n;
+                    if (mSkipLeft == 0)
+                    {
+                        mState = STATE_LINE;
+                        mStats.frameSkipped();
+                        mListener.onFrameSkipped(mCamera, mSkipLength);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return where to read the rest of the current pic, null if not
+     * receiving a pic.
+     */
+    ByteBuffer payloadTarget() {
+        return mState == STATE_PAYLOAD ? mFrame.getByteBuffer() : null;
+    }
+
+    /**
+     * Must be called after reading into the payloadTarget, delivers the frame
+     * if completed.
+     */
+    void payloadRead() {
+        if (!mFrame.getByteBuffer().hasRemaining())
+        {
+            final FrameBuffer frame = mFrame;
+            mFrame = null;
+            mState = STATE_LINE;
+            mStats.frameReceived(frame.length());
+            FrameEvents.payloadComplete(mCamera, mSequence, frame.length());
+
+            try
+            {
+                mListener.onFrameReceived(mCamera, frame);
+            }
+            finally
+            {
+                frame.release();
+            }
+        }
+    }
+
+    // I set them by estimated calling frequency.
+    private void handleLine(final byte[] buffer,
+                            final int start,
+                            final int end) throws IOException {
+        if (isCommand(buffer, start, end, RemoteCamera.Protocol.MSG_PIC))
+        {
+            final int len = parseInt(buffer, start + RemoteCamera.Protocol.MSG_PIC.length + 1, end);
+            FrameEvents.headerParsed(mCamera, ++mSequence, len);
+            if (len > 0)
+            {
+                final int maxFrameSize = mCamera.getMaxFrameSize();
+                if (len > maxFrameSize)
+                {
+                    logger.log(Level.WARNING, "Skipping frame of {0} bytes, max is {1}",
+                               new Object[] { len, maxFrameSize });
+                    mSkipLength = len;
+                    mSkipLeft = len;
+                    mState = STATE_SKIP;
+                }
+                else
+                {
+                    mFrame = mFramePool.acquire(len);
+                    mFrame.setOrigin(mCamera.getName(), mSequence);
+                    mState = STATE_PAYLOAD;
+                }
+            }
+            else
+            {
+                mStats.frameSkipped();
+                mListener.onFrameSkipped(mCamera, 0);
+            }
+        }
+        else if (isCommand(buffer, start, end, RemoteCamera.Protocol.MSG_READY))
+        {
+            final String[] parts = split(buffer, start, end);
+            final CameraInfo info = new CameraInfo();
+            info.width = Integer.parseInt(parts[1]);
+            info.height = Integer.parseInt(parts[2]);
+            info.type = Integer.parseInt(parts[3]);
+
+            mListener.onVideoReady(mCamera, info);
+        }
+        else if (isCommand(buffer, start, end, RemoteCamera.Protocol.MSG_SIZELIST))
+        {
+            final String[] parts = split(buffer, start, end);
+            mListener.onSizeListReceived(mCamera, Arrays.copyOfRange(parts, 1, parts.length));
+        }
+        else
+        {
+            logger.log(Level.INFO, "Unknown message from camera: [{0}]",
+                       new String(buffer, start, end - start));
+        }
+    }
+
+    /**
+     * @return true if the line is the command alone or followed by a space.
+     */
+    static boolean isCommand(final byte[] buffer,
+                             final int start,
+                             final int end,
+                             final byte[] command) {
+        final int cmdEnd = start + command.length;
+        if (cmdEnd > end || (cmdEnd < end && buffer[cmdEnd] != ' '))
+        {
+            return false;
+        }
+
+        for (int i = 0; i < command.length; i++)
+        {
+            if (buffer[start + i] != command[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses a positive decimal number, up to the end or the first space.
+     */
+    static int parseInt(final byte[] buffer,
+                        final int start,
+                        final int end) throws IOException {
+        long value = 0;
+        int i = start;
+
+        for (; i < end && buffer[i] != ' '; i++)
+        {
+            final int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9)
+            {
+                throw new IOException("Bad number in message: "
+                        + new String(buffer, start, end - start));
+            }
+
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE)
+            {
+                throw new IOException("Number too big in message");
+            }
+        }
+
+        if (i == start)
+        {
+            throw new IOException("Missing number in message");
+        }
+
+        return (int) value;
+    }
+
+    private static String[] split(final byte[] buffer,
+                                  final int start,
+                                  final int end) {
+        return new String(buffer, start, end - start).split(" ");
+    }
+}
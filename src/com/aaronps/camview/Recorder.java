@@ -0,0 +1,24 @@
+package com.aaronps.camview;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes the stream of one camera to disk, the frames as received, without
+ * re-encoding them. After close the other methods throw IOException.
+ *
+ * @author krom
+ */
+public interface Recorder extends Closeable {
+
+    /**
+     * The camera started a video, following frames are in this format.
+     */
+    void videoInfo(final long timestamp, final CameraInfo info) throws IOException;
+
+    /**
+     * Appends a frame, it is not retained, the data is written before
+     * returning.
+     */
+    void frame(final long timestamp, final FrameBuffer frame) throws IOException;
+}
@@ -12,10 +12,12 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Connection to one camera. Either run it on its own thread (it is a
+ * Runnable) or add it to a {@link CameraEngine}.
  *
  * @author krom
  */
-public final class RemoteCamera implements Runnable {
+public final class RemoteCamera implements CameraSource, Runnable {
 
     private static final Logger logger = Logger.getLogger("RemoteCamera");
 
@@ -33,44 +35,100 @@ public final class RemoteCamera implements Runnable {
 
     public interface Listener {
 
-        void onConnected(final RemoteCamera ct);
+        void onConnected(final CameraSource ct);
 
-        void onDisconnected(final RemoteCamera ct);
+        void onDisconnected(final CameraSource ct);
 
-        void onVideoReady(final RemoteCamera ct, final CameraInfo info);
+        void onVideoReady(final CameraSource ct, final CameraInfo info);
 
-        void onSizeListReceived(final RemoteCamera ct, final String[] sizes);
+        void onSizeListReceived(final CameraSource ct, final String[] sizes);
 
-        void onFrameReceived(final RemoteCamera ct, final ByteBuffer frame);
+        /**
+         * The frame is released after this returns, retain it to keep it.
+         */
+        void onFrameReceived(final CameraSource ct, final FrameBuffer frame);
+
+        /**
+         * An empty pic or one bigger than the maximum frame size was received
+         * and discarded, it still answers one pic request.
+         */
+        default void onFrameSkipped(final CameraSource ct, final int length) {
+        }
     }
 
     private final Listener mListener;
+    private final String mName;
+    private final CameraStats mStats = new CameraStats();
+    private final ProtocolParser mParser;
+
+    // set when driven by a CameraEngine instead of run()
+    private volatile CameraEngine.Connection mConnection;
 
-    // buffer sizes... if receiving pics, it might need a big buffer to hold the full pic
-    private static final int BUFFER_SIZE = 1 * 1024 * 1024;
+    // receive buffer, it holds the message lines, pics are read into their own
+    // FrameBuffer so it doesn't need to be big.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_MAX_FRAME_SIZE = Math.min(
+            FramePool.MAX_CLASS_SIZE,
+            Integer.getInteger("camview.maxframe", 16 * 1024 * 1024));
+
+    private volatile int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
 
     private final SocketAddress mSocketAddress;
+
+    // pic requests sent in this connection, guarded by "this"
+    private long mRequestSequence = 0;
     private OutputStream mOutputStream;
     private final ByteBufferOutputStream mSendBuffer;
 
     public RemoteCamera(Listener listener, final String host, final int port) {
+        this(listener, host, port, FramePool.getDefault());
+    }
+
+    public RemoteCamera(Listener listener,
+                        final String host,
+                        final int port,
+                        final FramePool framePool) {
         mListener = listener;
+        mName = host + ":" + port;
+        mParser = new ProtocolParser(this, listener, framePool);
         mSocketAddress = new InetSocketAddress(host, port);
         mSendBuffer = new ByteBufferOutputStream(ByteBuffer.allocate(256));
     }
 
-    public void request_pic() throws IOException {
-        mOutputStream.write(Protocol.REQ_PIC);
-        mOutputStream.flush();
+    /**
+     * Sets the biggest pic accepted, bigger ones are discarded without closing
+     * the connection.
+     *
+     * @param maxFrameSize size in bytes, up to FramePool.MAX_CLASS_SIZE.
+     */
+    public void setMaxFrameSize(final int maxFrameSize) {
+        mMaxFrameSize = Math.min(FramePool.MAX_CLASS_SIZE, maxFrameSize);
     }
 
-    public void request_sizelist() throws IOException {
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     * Requests one pic. Requests may be pipelined, the camera answers them in
+     * order, all the writes are synchronized so requests coming from different
+     * threads don't get mixed.
+     */
+    @Override
+    public synchronized void request_pic() throws IOException {
+        send(Protocol.REQ_PIC, 0, Protocol.REQ_PIC.length);
+        FrameEvents.requestSent(this, ++mRequestSequence);
+    }
+
+    @Override
+    public synchronized void request_sizelist() throws IOException {
         logger.info("Request SizeList");
-        mOutputStream.write(Protocol.REQ_SIZELIST);
-        mOutputStream.flush();
+        send(Protocol.REQ_SIZELIST, 0, Protocol.REQ_SIZELIST.length);
     }
 
-    public void request_beginvideo(final String size) throws IOException {
+    @Override
+    public synchronized void request_beginvideo(final String size) throws IOException {
         logger.info("Request BeginVideo");
 
         mSendBuffer.reset();
@@ -79,14 +137,75 @@ public final class RemoteCamera implements Runnable {
         mSendBuffer.write(10);
 
         final ByteBuffer bb = mSendBuffer.getByteBuffer();
-        mOutputStream.write(bb.array(), 0, bb.position());
-        mOutputStream.flush();
+        send(bb.array(), 0, bb.position());
     }
 
-    public void request_stopvideo() throws IOException {
+    @Override
+    public synchronized void request_stopvideo() throws IOException {
         logger.info("Request StopVideo");
-        mOutputStream.write(Protocol.REQ_STOPVIDEO);
-        mOutputStream.flush();
+        send(Protocol.REQ_STOPVIDEO, 0, Protocol.REQ_STOPVIDEO.length);
+    }
+
+    private void send(final byte[] b, final int off, final int len) throws IOException {
+        final CameraEngine.Connection connection = mConnection;
+        if (connection != null)
+        {
+            connection.send(b, off, len);
+        }
+        else
+        {
+            mOutputStream.write(b, off, len);
+            mOutputStream.flush();
+        }
+    }
+
+    /**
+     * @return host:port as given to the constructor.
+     */
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    public SocketAddress getAddress() {
+        return mSocketAddress;
+    }
+
+    ProtocolParser parser() {
+        return mParser;
+    }
+
+    void attach(final CameraEngine.Connection connection) {
+        mConnection = connection;
+    }
+
+    CameraEngine.Connection attachment() {
+        return mConnection;
+    }
+
+    /**
+     * @return the stats of this camera, register them to publish them.
+     */
+    public CameraStats getStats() {
+        return mStats;
+    }
+
+    void onEngineConnected() {
+        newConnection();
+        mStats.connected();
+        mListener.onConnected(this);
+    }
+
+    void onEngineDisconnected() {
+        mStats.disconnected();
+        mListener.onDisconnected(this);
+    }
+
+    /**
+     * The sequence starts again, the parser does the same on reset.
+     */
+    private synchronized void newConnection() {
+        mRequestSequence = 0;
     }
 
     @Override
@@ -113,6 +232,8 @@ public final class RemoteCamera implements Runnable {
 
                     logger.log(Level.INFO, "Connected to [{0}]", mSocketAddress.toString());
 
+                    newConnection();
+                    mStats.connected();
                     mListener.onConnected(this);
 
                     handleConnection(socketChannel, byteBuffer);
@@ -147,6 +268,7 @@ public final class RemoteCamera implements Runnable {
                             // YESSSS this one time can be ignored!!!!
                         }
                         socketChannel = null;
+                        mStats.disconnected();
                         mListener.onDisconnected(this);
                     }
                 }
@@ -167,135 +289,55 @@ public final class RemoteCamera implements Runnable {
         }
     }
 
-    private static boolean isSameException(Exception a, Exception b) {
+    static boolean isSameException(Exception a, Exception b) {
         return a.getClass() == b.getClass()
                 && Arrays.deepEquals(a.getStackTrace(), b.getStackTrace());
     }
 
+    /**
+     * Reads and handles messages until the connection is closed. Pics are read
+     * directly into their frame buffer once the receive buffer is empty.
+     */
     void handleConnection(final SocketChannel socketChannel,
                           final ByteBuffer byteBuffer) throws IOException {
-        int linePos = 0;
+        final ProtocolParser parser = mParser;
+        parser.reset();
         byteBuffer.clear();
-        final byte[] byteArray = byteBuffer.array();
 
-        do
+        try
         {
-            if (byteBuffer.position() == linePos)
+            for (;;)
             {
+                final ByteBuffer payload = byteBuffer.position() == 0 ? parser.payloadTarget() : null;
+                if (payload != null)
+                {
+                    if (socketChannel.read(payload) < 0)
+                    {
+                        return;
+                    }
+                    parser.payloadRead();
+                    continue;
+                }
+
+                if (!byteBuffer.hasRemaining())
+                {
+                    throw new IOException("Message line too long");
+                }
+
                 if (socketChannel.read(byteBuffer) <= 0)
                 {
                     // didn't read, probably was closed.
                     return;
                 }
-            }
-
-            if (byteArray[linePos] == 10)
-            {
-                byteBuffer.limit(byteBuffer.position());
-                byteBuffer.position(linePos + 1); // +1 is the new line byte
-
-                handleMessage(socketChannel, byteBuffer, linePos);
 
+                byteBuffer.flip();
+                parser.parse(byteBuffer);
                 byteBuffer.compact();
-                linePos = -1;
             }
-
-        } while (++linePos < byteBuffer.capacity());
-
-    }
-
-    void handleMessage(final SocketChannel socketChannel,
-                       final ByteBuffer byteBuffer,
-                       final int pos) throws IOException {
-        final byte[] buffer = byteBuffer.array();
-        final String msg = new String(buffer, 0, pos);
-        final String[] parts = msg.split(" ");
-
-        switch (parts[0])
+        }
+        finally
         {
-            case "Pic":
-            {
-                final int len = Integer.parseInt(parts[1]);
-                if (len > 0)
-                {
-                    if (byteBuffer.remaining() < len)
-                    {
-                        byteBuffer.compact();
-                        do
-                        {
-                            if (socketChannel.read(byteBuffer) <= 0)
-                            {
-                                throw new IOException("Buffer full or server closed connection");
-                            }
-                        } while (byteBuffer.position() < len);
-
-                        byteBuffer.flip();
-                    }
-
-                    final int olimit = byteBuffer.limit();
-                    final int newlimit = byteBuffer.position() + len;
-                    byteBuffer.limit(newlimit);
-
-                    mListener.onFrameReceived(this, byteBuffer);
-
-                    byteBuffer.limit(olimit);
-                    byteBuffer.position(newlimit);
-                }
-                break;
-            }
-            case "Ready":
-            {
-                final CameraInfo info = new CameraInfo();
-                info.width = Integer.parseInt(parts[1]);
-                info.height = Integer.parseInt(parts[2]);
-                info.type = Integer.parseInt(parts[3]);
-
-                mListener.onVideoReady(this, info);
-                break;
-            }
-            case "SizeList":
-            {
-                mListener.onSizeListReceived(this, Arrays.copyOfRange(parts, 1, parts.length));
-                break;
-            }
-            default:
-            {
-                logger.log(Level.INFO, "Unknown message from camera: [{0}]", msg);
-            }
+            parser.reset();
         }
-
-        // I set them by estimated calling frequency.
-//        if (startsWidth(buffer, pos, Protocol.MSG_PIC))
-//        {
-//            logger.info("Got a pic");
-//        }
-//        else if (startsWidth(buffer, pos, Protocol.MSG_READY))
-//        {
-//            logger.info("Got ready");
-//
-//        }
-//        else if (startsWidth(buffer, pos, Protocol.MSG_SIZELIST))
-//        {
-//            logger.info("Got sizelist: ");
-//        }
     }
-
-//    private static boolean startsWidth(final byte[] buffer,
-//                                       final int pos,
-//                                       final byte[] head) {
-//        if (pos != head.length)
-//        {
-//            return false;
-//        }
-//
-//        for (int i = 0; i < pos; ++i)
-//        {
-//            if (buffer[i] != head[i])
-//            {
-//                return false;
-//            }
-//        }
-//
-//        return true;
-//    }
 }
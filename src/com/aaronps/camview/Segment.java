@@ -0,0 +1,93 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Layout of the segment files written by {@link SegmentedRecorder}.
+ * <p>
+ * A segment is a file of fixed size, all of one video format. The frame
+ * records grow from the header to the end, the index grows from the end to
+ * the header, the segment is full when they meet. When finished the index
+ * is moved right after the records and the file is truncated, unless the
+ * free space is smaller than the index (a full segment), then it stays at
+ * the end. The size in the header is always where the index ends.
+ * <pre>
+ * header   magic, size, width, height, type, count, dataEnd,
+ *          firstTimestamp, lastTimestamp (HEADER_SIZE bytes)
+ * records  timestamp (8), length (4), payload
+ * ...free...
+ * index    timestamp (8), record offset (4), entry n is at
+ *          size - (n + 1) * INDEX_ENTRY_SIZE
+ * </pre>
+ * The count and dataEnd are updated after the record and its index entry
+ * are written, what is beyond them is garbage. Numbers are big endian.
+ *
+ * @author krom
+ */
+final class Segment {
+
+    static final int MAGIC = 0x43565331; // "CVS1"
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_SIZE = 4;
+    static final int OFFSET_WIDTH = 8;
+    static final int OFFSET_HEIGHT = 12;
+    static final int OFFSET_TYPE = 16;
+    static final int OFFSET_COUNT = 20;
+    static final int OFFSET_DATA_END = 24;
+    static final int OFFSET_FIRST_TIMESTAMP = 28;
+    static final int OFFSET_LAST_TIMESTAMP = 36;
+
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_HEADER_SIZE = 8 + 4;
+    static final int INDEX_ENTRY_SIZE = 8 + 4;
+
+    static final String SUFFIX = ".seg";
+
+    private Segment() {
+    }
+
+    static File file(final File directory, final long sequence) {
+        return new File(directory, String.format("%012d", sequence) + SUFFIX);
+    }
+
+    /**
+     * @return the sequence number of the segment, -1 if it is not a segment
+     * file name.
+     */
+    static long sequence(final File file) {
+        final String name = file.getName();
+        if (!name.endsWith(SUFFIX))
+        {
+            return -1;
+        }
+
+        try
+        {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the segment files of the directory, oldest first.
+     */
+    static File[] list(final File directory) {
+        final File[] files = directory.listFiles(f -> f.isFile() && sequence(f) >= 0);
+        if (files == null)
+        {
+            return new File[0];
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(sequence(a), sequence(b)));
+        return files;
+    }
+
+    static int indexPosition(final int size, final int entry) {
+        return size - (entry + 1) * INDEX_ENTRY_SIZE;
+    }
+}
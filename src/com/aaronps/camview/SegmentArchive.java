@@ -0,0 +1,273 @@
+package com.aaronps.camview;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read side of the {@link SegmentedRecorder} directories.
+ * <p>
+ * The segment headers are read when opening, it is a snapshot: frames
+ * recorded after that are not seen. A frame is addressed by its segment and
+ * its entry in the segment index, both are found by binary search from a
+ * timestamp.
+ * <p>
+ * Segments are memory mapped when first used, only the one being read and
+ * its neighbours are kept, the next one is loaded on a background thread so
+ * crossing into it doesn't wait for the disk. Reading frames is meant for one
+ * thread.
+ *
+ * @author krom
+ */
+final class SegmentArchive implements Closeable {
+
+    private static final Logger logger = Logger.getLogger("SegmentArchive");
+
+    private final File[] mFiles;
+    private final int[] mSizes;
+    private final int[] mCounts;
+    private final long[] mFirstTimestamps;
+    private final long[] mLastTimestamps;
+    private final CameraInfo[] mInfos;
+
+    // guarded by "this"
+    private final MappedByteBuffer[] mMaps;
+    private int mCurrent = -1;
+
+    private final ExecutorService mReadAhead = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "SegmentArchive-readahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    SegmentArchive(final File directory) throws IOException {
+        final List<File> files = new ArrayList<>();
+        final List<int[]> headers = new ArrayList<>();
+        final List<long[]> times = new ArrayList<>();
+        final ByteBuffer header = ByteBuffer.allocate(Segment.HEADER_SIZE);
+
+        for (File f : Segment.list(directory))
+        {
+            header.clear();
+            try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+            {
+                while (header.hasRemaining() && channel.read(header) >= 0)
+                {
+                }
+            }
+
+            final int count = header.getInt(Segment.OFFSET_COUNT);
+            if (header.hasRemaining() || header.getInt(Segment.OFFSET_MAGIC) != Segment.MAGIC)
+            {
+                logger.log(Level.WARNING, "Not a segment: {0}", f);
+                continue;
+            }
+
+            if (count == 0)
+            {
+                continue;
+            }
+
+            files.add(f);
+            headers.add(new int[] {
+                header.getInt(Segment.OFFSET_SIZE),
+                count,
+                header.getInt(Segment.OFFSET_WIDTH),
+                header.getInt(Segment.OFFSET_HEIGHT),
+                header.getInt(Segment.OFFSET_TYPE)
+            });
+            times.add(new long[] {
+                header.getLong(Segment.OFFSET_FIRST_TIMESTAMP),
+                header.getLong(Segment.OFFSET_LAST_TIMESTAMP)
+            });
+        }
+
+        if (files.isEmpty())
+        {
+            throw new IOException("No recording in " + directory);
+        }
+
+        final int n = files.size();
+        mFiles = files.toArray(new File[n]);
+        mSizes = new int[n];
+        mCounts = new int[n];
+        mFirstTimestamps = new long[n];
+        mLastTimestamps = new long[n];
+        mInfos = new CameraInfo[n];
+        mMaps = new MappedByteBuffer[n];
+
+        for (int i = 0; i < n; i++)
+        {
+            final int[] h = headers.get(i);
+            mSizes[i] = h[0];
+            mCounts[i] = h[1];
+            mInfos[i] = new CameraInfo();
+            mInfos[i].width = h[2];
+            mInfos[i].height = h[3];
+            mInfos[i].type = h[4];
+            mFirstTimestamps[i] = times.get(i)[0];
+            mLastTimestamps[i] = times.get(i)[1];
+        }
+    }
+
+    int segmentCount() {
+        return mFiles.length;
+    }
+
+    int frameCount(final int segment) {
+        return mCounts[segment];
+    }
+
+    CameraInfo info(final int segment) {
+        return mInfos[segment];
+    }
+
+    long firstTimestamp() {
+        return mFirstTimestamps[0];
+    }
+
+    long lastTimestamp() {
+        return mLastTimestamps[mLastTimestamps.length - 1];
+    }
+
+    /**
+     * @return the last segment starting at or before the timestamp, the
+     * first one if the timestamp is before all of them.
+     */
+    int findSegment(final long timestamp) {
+        int lo = 0, hi = mFirstTimestamps.length - 1;
+        while (lo < hi)
+        {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (mFirstTimestamps[mid] <= timestamp)
+            {
+                lo = mid;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the last frame of the segment at or before the timestamp, the
+     * first one if the timestamp is before all of them.
+     */
+    int findEntry(final int segment, final long timestamp) throws IOException {
+        final MappedByteBuffer map = use(segment);
+        final int size = mSizes[segment];
+        int lo = 0, hi = mCounts[segment] - 1;
+        while (lo < hi)
+        {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (map.getLong(Segment.indexPosition(size, mid)) <= timestamp)
+            {
+                lo = mid;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    long timestamp(final int segment, final int entry) throws IOException {
+        return use(segment).getLong(Segment.indexPosition(mSizes[segment], entry));
+    }
+
+    /**
+     * Copies the frame into a buffer from the pool, the caller must release
+     * it.
+     */
+    FrameBuffer read(final int segment,
+                     final int entry,
+                     final FramePool pool) throws IOException {
+        final MappedByteBuffer map = use(segment);
+        final int offset = map.getInt(Segment.indexPosition(mSizes[segment], entry) + 8);
+        final int length = map.getInt(offset + 8);
+
+        final FrameBuffer frame = pool.acquire(length);
+        map.position(offset + Segment.RECORD_HEADER_SIZE);
+        map.get(frame.array(), 0, length);
+        return frame;
+    }
+
+    /**
+     * Starts loading the segment in the background, does nothing if it
+     * doesn't exist.
+     */
+    void readAhead(final int segment) {
+        if (segment < 0 || segment >= mFiles.length)
+        {
+            return;
+        }
+
+        mReadAhead.execute(() -> {
+            try
+            {
+                map(segment).load();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.WARNING, "Cannot read ahead " + mFiles[segment], ex);
+            }
+        });
+    }
+
+    /**
+     * Maps the segment for reading, the ones not next to it are dropped.
+     */
+    private synchronized MappedByteBuffer use(final int segment) throws IOException {
+        if (segment != mCurrent)
+        {
+            for (int i = 0; i < mMaps.length; i++)
+            {
+                if (Math.abs(i - segment) > 1)
+                {
+                    mMaps[i] = null;
+                }
+            }
+            mCurrent = segment;
+        }
+
+        return map(segment);
+    }
+
+    private synchronized MappedByteBuffer map(final int segment) throws IOException {
+        MappedByteBuffer map = mMaps[segment];
+        if (map == null)
+        {
+            try (FileChannel channel = FileChannel.open(mFiles[segment].toPath(), StandardOpenOption.READ))
+            {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, mSizes[segment]);
+            }
+            mMaps[segment] = map;
+        }
+        return map;
+    }
+
+    @Override
+    public void close() {
+        mReadAhead.shutdownNow();
+        synchronized (this)
+        {
+            for (int i = 0; i < mMaps.length; i++)
+            {
+                mMaps[i] = null;
+            }
+        }
+    }
+}
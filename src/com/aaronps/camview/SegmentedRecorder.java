@@ -0,0 +1,268 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records a camera into a directory of fixed size segments, see
+ * {@link Segment} for the layout.
+ * <p>
+ * The segments are memory mapped, appending a frame is one copy from the
+ * frame buffer into the mapping plus a few header numbers, the kernel writes
+ * it back whenever it likes. A new segment starts when the current one is
+ * full or the video format changes, the finished one is forced to disk and
+ * truncated if that saves more than the size of its index, then the oldest
+ * segments are deleted until the directory fits in the retention limit.
+ *
+ * @author krom
+ */
+public final class SegmentedRecorder implements Recorder {
+
+    private static final Logger logger = Logger.getLogger("SegmentedRecorder");
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final long mRetention;
+
+    // oldest first, includes the current one
+    private final ArrayDeque<File> mSegments = new ArrayDeque<>();
+    private long mNextSequence;
+
+    private final CameraInfo mInfo = new CameraInfo();
+    private boolean mHaveInfo = false;
+    // a late frame must not start a segment that nobody finishes
+    private boolean mClosed = false;
+
+    private File mFile;
+    private MappedByteBuffer mMap;
+    private int mCount;
+    private int mDataEnd;
+    private int mIndexStart;
+
+    /**
+     * @param directory where the segments go, created if needed, segments
+     * already there are kept and count for the retention.
+     * @param segmentSize size of each segment file.
+     * @param retention maximum total size of the segments, 0 for no limit.
+     */
+    public SegmentedRecorder(final File directory,
+                             final int segmentSize,
+                             final long retention) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        if (segmentSize <= Segment.HEADER_SIZE + Segment.RECORD_HEADER_SIZE + Segment.INDEX_ENTRY_SIZE)
+        {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mRetention = retention;
+
+        long last = -1;
+        for (File f : Segment.list(directory))
+        {
+            mSegments.add(f);
+            last = Segment.sequence(f);
+        }
+        mNextSequence = last + 1;
+    }
+
+    @Override
+    public synchronized void videoInfo(final long timestamp,
+                                       final CameraInfo info) throws IOException {
+        checkOpen();
+        if (mHaveInfo
+            && info.width == mInfo.width
+            && info.height == mInfo.height
+            && info.type == mInfo.type)
+        {
+            return;
+        }
+
+        mInfo.width = info.width;
+        mInfo.height = info.height;
+        mInfo.type = info.type;
+        mHaveInfo = true;
+
+        // segments are of one format only, next frame starts a new one.
+        finishSegment();
+    }
+
+    @Override
+    public synchronized void frame(final long timestamp,
+                                   final FrameBuffer frame) throws IOException {
+        checkOpen();
+        if (!mHaveInfo)
+        {
+            throw new IOException("Frame before video info");
+        }
+
+        final int length = frame.length();
+        final int needed = Segment.RECORD_HEADER_SIZE + length + Segment.INDEX_ENTRY_SIZE;
+
+        if (mMap == null || mIndexStart - mDataEnd < needed)
+        {
+            if (needed > mSegmentSize - Segment.HEADER_SIZE)
+            {
+                throw new IOException("Frame of " + length + " bytes doesn't fit in a segment");
+            }
+
+            finishSegment();
+            startSegment(timestamp);
+        }
+
+        final MappedByteBuffer map = mMap;
+        final int offset = mDataEnd;
+
+        map.putLong(offset, timestamp);
+        map.putInt(offset + 8, length);
+        map.position(offset + Segment.RECORD_HEADER_SIZE);
+        map.put(frame.array(), 0, length);
+
+        mIndexStart -= Segment.INDEX_ENTRY_SIZE;
+        map.putLong(mIndexStart, timestamp);
+        map.putInt(mIndexStart + 8, offset);
+
+        mDataEnd = offset + Segment.RECORD_HEADER_SIZE + length;
+        mCount++;
+        map.putLong(Segment.OFFSET_LAST_TIMESTAMP, timestamp);
+        map.putInt(Segment.OFFSET_DATA_END, mDataEnd);
+        map.putInt(Segment.OFFSET_COUNT, mCount);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mClosed = true;
+        finishSegment();
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed)
+        {
+            throw new IOException("Recorder closed");
+        }
+    }
+
+    private void startSegment(final long timestamp) throws IOException {
+        final File file = Segment.file(mDirectory, mNextSequence++);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE))
+        {
+            // the mapping stays valid after closing the channel
+            mMap = channel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        }
+
+        mSegments.add(file);
+        mFile = file;
+        mCount = 0;
+        mDataEnd = Segment.HEADER_SIZE;
+        mIndexStart = mSegmentSize;
+
+        mMap.putInt(Segment.OFFSET_MAGIC, Segment.MAGIC);
+        mMap.putInt(Segment.OFFSET_SIZE, mSegmentSize);
+        mMap.putInt(Segment.OFFSET_WIDTH, mInfo.width);
+        mMap.putInt(Segment.OFFSET_HEIGHT, mInfo.height);
+        mMap.putInt(Segment.OFFSET_TYPE, mInfo.type);
+        mMap.putInt(Segment.OFFSET_COUNT, 0);
+        mMap.putInt(Segment.OFFSET_DATA_END, mDataEnd);
+        mMap.putLong(Segment.OFFSET_FIRST_TIMESTAMP, timestamp);
+        mMap.putLong(Segment.OFFSET_LAST_TIMESTAMP, timestamp);
+
+        applyRetention();
+    }
+
+    /**
+     * Moves the index right after the records, writes the segment to disk and
+     * truncates the file to what is used. The index is moved only if the free
+     * space between the records and the index is at least as big as it, so
+     * the copy never overwrites the old index and until the header has the
+     * new size the old index is still valid: a crash in between leaves a
+     * good segment. Otherwise, usually a full segment, the index stays where
+     * it is and the segment keeps its size, there is less than an index of
+     * free space to gain.
+     */
+    private void finishSegment() throws IOException {
+        final MappedByteBuffer map = mMap;
+        if (map == null)
+        {
+            return;
+        }
+        mMap = null;
+
+        final int indexLength = mSegmentSize - mIndexStart;
+        if (mIndexStart - mDataEnd < indexLength)
+        {
+            map.force();
+            mFile = null;
+            return;
+        }
+
+        final byte[] index = new byte[indexLength];
+        map.position(mIndexStart);
+        map.get(index);
+        map.position(mDataEnd);
+        map.put(index);
+        map.force();
+
+        final int size = mDataEnd + indexLength;
+        map.putInt(Segment.OFFSET_SIZE, size);
+        map.force();
+
+        try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.WRITE))
+        {
+            channel.truncate(size);
+            channel.force(true);
+        }
+        catch (IOException e)
+        {
+            // still mapped (windows), the header has the size so it is valid
+            // as it is, only bigger.
+            logger.log(Level.WARNING, "Cannot truncate " + mFile, e);
+        }
+        mFile = null;
+    }
+
+    private void applyRetention() {
+        if (mRetention <= 0)
+        {
+            return;
+        }
+
+        long total = 0;
+        for (File f : mSegments)
+        {
+            total += f.length();
+        }
+
+        // never the current one
+        while (mSegments.size() > 1 && total > mRetention)
+        {
+            final File oldest = mSegments.peekFirst();
+            final long length = oldest.length();
+            if (!oldest.delete() && oldest.exists())
+            {
+                // still mapped somewhere (windows), try again next time
+                logger.log(Level.WARNING, "Cannot delete {0}", oldest);
+                return;
+            }
+
+            mSegments.removeFirst();
+            total -= length;
+        }
+    }
+}
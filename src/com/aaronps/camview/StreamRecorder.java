@@ -0,0 +1,89 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Simplest recorder, appends everything to a single file.
+ * <p>
+ * The file is a sequence of records: kind (1 byte, 'I' video info, 'F'
+ * frame), timestamp in milliseconds (8 bytes), length (4 bytes) and the data.
+ * The video info data is width, height and type, 4 bytes each. Numbers are
+ * big endian.
+ *
+ * @author krom
+ */
+public final class StreamRecorder implements Recorder {
+
+    public static final byte KIND_INFO = 'I';
+    public static final byte KIND_FRAME = 'F';
+
+    private static final int HEADER_SIZE = 1 + 8 + 4;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE + 12);
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+    private boolean mClosed = false;
+
+    public StreamRecorder(final File file) throws IOException {
+        mChannel = FileChannel.open(file.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.APPEND);
+        mGather[0] = mHeader;
+    }
+
+    @Override
+    public synchronized void videoInfo(final long timestamp,
+                                       final CameraInfo info) throws IOException {
+        checkOpen();
+        mHeader.clear();
+        mHeader.put(KIND_INFO).putLong(timestamp).putInt(12);
+        mHeader.putInt(info.width).putInt(info.height).putInt(info.type);
+        mHeader.flip();
+
+        while (mHeader.hasRemaining())
+        {
+            mChannel.write(mHeader);
+        }
+    }
+
+    @Override
+    public synchronized void frame(final long timestamp,
+                                   final FrameBuffer frame) throws IOException {
+        checkOpen();
+        mHeader.clear();
+        mHeader.put(KIND_FRAME).putLong(timestamp).putInt(frame.length());
+        mHeader.flip();
+
+        final ByteBuffer data = frame.asByteBuffer();
+        mGather[1] = data;
+        try
+        {
+            while (data.hasRemaining())
+            {
+                mChannel.write(mGather);
+            }
+        }
+        finally
+        {
+            mGather[1] = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mClosed = true;
+        mChannel.close();
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed)
+        {
+            throw new IOException("Recorder closed");
+        }
+    }
+}
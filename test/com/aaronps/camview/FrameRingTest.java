@@ -0,0 +1,167 @@
+package com.aaronps.camview;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FrameRing eviction when the bytes or the slots run out, the wrap to the
+ * start of the arena and stepping through the sequences.
+ *
+ * @author krom
+ */
+public class FrameRingTest {
+
+    private final FramePool mPool = new FramePool(1024 * 1024);
+
+    private static long timestamp(final long n) {
+        return 1000 + n * 40;
+    }
+
+    /**
+     * Frame n has length bytes, all of them n.
+     */
+    private void add(final FrameRing ring, final int n, final int length) {
+        final FrameBuffer frame = mPool.acquire(length);
+        Arrays.fill(frame.array(), 0, length, (byte) n);
+        ring.add(timestamp(n), frame);
+        frame.release();
+    }
+
+    private void assertFrame(final FrameRing ring, final long sequence, final int n, final int length) {
+        final FrameBuffer frame = ring.read(sequence, mPool);
+        try
+        {
+            assertEquals("length of " + sequence, length, frame.length());
+            for (int i = 0; i < length; i++)
+            {
+                assertEquals("byte " + i + " of " + sequence, (byte) n, frame.array()[i]);
+            }
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    /**
+     * All the frames kept must be intact, none overwrote another.
+     */
+    private void assertAllIntact(final FrameRing ring, final int length) {
+        for (long s = ring.firstSequence(); s <= ring.lastSequence(); s++)
+        {
+            assertFrame(ring, s, (int) s, length);
+            assertEquals(timestamp(s), ring.timestamp(s));
+        }
+    }
+
+    @Test
+    public void empty() {
+        final FrameRing ring = new FrameRing(1000, 10);
+        assertTrue(ring.isEmpty());
+        assertEquals(ring.firstSequence() - 1, ring.lastSequence());
+        assertEquals(-1, ring.find(timestamp(0)));
+        assertNull(ring.read(0, mPool));
+    }
+
+    @Test
+    public void oldestEvictedWhenBytesRunOut() {
+        // 3 frames of 300 fit, not 4
+        final FrameRing ring = new FrameRing(1000, 100);
+        for (int n = 0; n < 20; n++)
+        {
+            add(ring, n, 300);
+            assertEquals(n, ring.lastSequence());
+            assertTrue(ring.lastSequence() - ring.firstSequence() < 3);
+            assertAllIntact(ring, 300);
+        }
+        assertEquals(17, ring.firstSequence());
+        assertNull(ring.read(16, mPool));
+        assertEquals(-1, ring.timestamp(16));
+    }
+
+    @Test
+    public void oldestEvictedWhenSlotsRunOut() {
+        final FrameRing ring = new FrameRing(100000, 8);
+        for (int n = 0; n < 30; n++)
+        {
+            add(ring, n, 10);
+        }
+        assertEquals(22, ring.firstSequence());
+        assertEquals(29, ring.lastSequence());
+        assertAllIntact(ring, 10);
+    }
+
+    @Test
+    public void wrapsWithDifferentSizes() {
+        final FrameRing ring = new FrameRing(1000, 100);
+        for (int n = 0; n < 200; n++)
+        {
+            final int length = 50 + n * 37 % 400;
+            add(ring, n, length);
+            for (long s = ring.firstSequence(); s <= ring.lastSequence(); s++)
+            {
+                assertFrame(ring, s, (int) s, 50 + (int) s * 37 % 400);
+            }
+        }
+    }
+
+    @Test
+    public void tooBigIsIgnored() {
+        final FrameRing ring = new FrameRing(1000, 10);
+        add(ring, 0, 100);
+        add(ring, 1, 1001);
+        assertEquals(0, ring.lastSequence());
+        assertFrame(ring, 0, 0, 100);
+    }
+
+    @Test
+    public void findAndStep() {
+        final FrameRing ring = new FrameRing(100000, 16);
+        for (int n = 0; n < 40; n++)
+        {
+            add(ring, n, 10);
+        }
+
+        // halfway to the next frame finds this one
+        assertEquals(30, ring.find(timestamp(30) + 20));
+        // before the oldest, the oldest
+        assertEquals(ring.firstSequence(), ring.find(0));
+        assertEquals(ring.lastSequence(), ring.find(Long.MAX_VALUE));
+
+        // stepping is moving the sequence, back to the oldest and forward
+        // to the newest
+        for (long s = ring.lastSequence(); s >= ring.firstSequence(); s--)
+        {
+            assertFrame(ring, s, (int) s, 10);
+        }
+        assertNull(ring.read(ring.firstSequence() - 1, mPool));
+        assertNull(ring.read(ring.lastSequence() + 1, mPool));
+    }
+
+    @Test
+    public void formatChangeClears() {
+        final FrameRing ring = new FrameRing(1000, 10);
+        final CameraInfo info = new CameraInfo();
+        info.width = 640;
+        info.height = 480;
+        info.type = CameraInfo.TYPE_JPEG;
+        ring.setVideoInfo(info);
+        add(ring, 0, 100);
+        add(ring, 1, 100);
+
+        // the same format keeps the frames
+        ring.setVideoInfo(info);
+        assertEquals(2, ring.lastSequence() - ring.firstSequence() + 1);
+
+        info.width = 320;
+        ring.setVideoInfo(info);
+        assertTrue(ring.isEmpty());
+        // the sequences keep increasing
+        assertEquals(2, ring.firstSequence());
+        add(ring, 2, 100);
+        assertFrame(ring, 2, 2, 100);
+    }
+}
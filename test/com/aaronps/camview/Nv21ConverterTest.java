@@ -0,0 +1,107 @@
+package com.aaronps.camview;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Nv21Converter against the float conversion of CameraView.
+ *
+ * @author krom
+ */
+public class Nv21ConverterTest {
+
+    private static byte[] randomFrame(final int offset, final int width, final int height) {
+        final byte[] src = new byte[offset + width * height * 3 / 2];
+        new Random(width * 31 + height).nextBytes(src);
+        return src;
+    }
+
+    private static int maxChannelDifference(final int[] a, final int[] b) {
+        int max = 0;
+        for (int n = 0; n < a.length; n++)
+        {
+            for (int shift = 0; shift < 24; shift += 8)
+            {
+                final int ca = (a[n] >> shift) & 0xff;
+                final int cb = (b[n] >> shift) & 0xff;
+                max = Math.max(max, Math.abs(ca - cb));
+            }
+        }
+        return max;
+    }
+
+    private static void assertCloseToReference(final int offset, final int width, final int height) {
+        final byte[] src = randomFrame(offset, width, height);
+        final int[] expected = new int[width * height];
+        final int[] actual = new int[width * height];
+
+        CameraView.nv21ToRGB(src, offset, expected, width, height);
+        Nv21Converter.convert(src, offset, actual, width, height);
+
+        final int max = maxChannelDifference(expected, actual);
+        assertTrue(width + "x" + height + " differs by " + max, max <= 1);
+    }
+
+    @Test
+    public void smallFrameMatchesReference() {
+        assertCloseToReference(0, 64, 48);
+    }
+
+    @Test
+    public void parallelFrameMatchesReference() {
+        // over the parallel threshold, converted in bands
+        assertCloseToReference(0, 1280, 720);
+    }
+
+    @Test
+    public void offsetAndOddBandsMatchReference() {
+        assertCloseToReference(37, 1920, 1082);
+    }
+
+    @Test
+    public void subsampledIsEveryStepPixel() {
+        final int width = 640, height = 480;
+        final byte[] src = randomFrame(0, width, height);
+        final int[] full = new int[width * height];
+        Nv21Converter.convert(src, 0, full, width, height);
+
+        for (int step = 1; step <= 3; step++)
+        {
+            final int dw = width / step, dh = height / step;
+            final int[] sub = new int[dw * dh];
+            Nv21Converter.convertSubsampled(src, 0, sub, width, height, step);
+
+            for (int y = 0; y < dh; y++)
+            {
+                for (int x = 0; x < dw; x++)
+                {
+                    assertEquals("step " + step + " at " + x + "," + y,
+                                 full[y * step * width + x * step], sub[y * dw + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void regionIsCropOfFullFrame() {
+        final int width = 320, height = 240;
+        final byte[] src = randomFrame(5, width, height);
+        final int[] full = new int[width * height];
+        Nv21Converter.convert(src, 5, full, width, height);
+
+        // odd left edge, the chroma is shared with the pixel to the left
+        final int rx = 33, ry = 17, rw = 100, rh = 60;
+        final int[] region = new int[rw * rh];
+        Nv21Converter.convertRegion(src, 5, region, width, height, rx, ry, rw, rh, 1);
+
+        final int[] expected = new int[rw * rh];
+        for (int y = 0; y < rh; y++)
+        {
+            System.arraycopy(full, (ry + y) * width + rx, expected, y * rw, rw);
+        }
+        assertArrayEquals(expected, region);
+    }
+}
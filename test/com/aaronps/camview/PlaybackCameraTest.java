@@ -0,0 +1,168 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PlaybackCamera over a SegmentedRecorder recording: seek, steps and playing
+ * to the end.
+ *
+ * @author krom
+ */
+public class PlaybackCameraTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int FRAMES = 50;
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FramePool mPool = new FramePool(1024 * 1024);
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+    private PlaybackCamera mPlayback;
+
+    private final RemoteCamera.Listener mListener = new RemoteCamera.Listener() {
+
+        @Override
+        public void onConnected(final CameraSource ct) {
+            mEvents.add("connected");
+        }
+
+        @Override
+        public void onDisconnected(final CameraSource ct) {
+            mEvents.add("disconnected");
+        }
+
+        @Override
+        public void onVideoReady(final CameraSource ct, final CameraInfo info) {
+            mEvents.add("ready " + info.width + "x" + info.height);
+        }
+
+        @Override
+        public void onSizeListReceived(final CameraSource ct, final String[] sizes) {
+            mEvents.add("sizes " + Arrays.toString(sizes));
+        }
+
+        @Override
+        public void onFrameReceived(final CameraSource ct, final FrameBuffer frame) {
+            // the content of frame n is n
+            mEvents.add("frame " + frame.array()[0]);
+        }
+
+        @Override
+        public void onFrameSkipped(final CameraSource ct, final int length) {
+            mEvents.add("skipped " + length);
+        }
+    };
+
+    private static long timestamp(final int n) {
+        return 1000000 + n * 40;
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        final File dir = mFolder.newFolder();
+        final SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        final CameraInfo info = new CameraInfo();
+        info.width = 320;
+        info.height = 240;
+        info.type = CameraInfo.TYPE_JPEG;
+        recorder.videoInfo(timestamp(0), info);
+        for (int n = 0; n < FRAMES; n++)
+        {
+            final FrameBuffer frame = mPool.acquire(200);
+            Arrays.fill(frame.array(), 0, frame.length(), (byte) n);
+            recorder.frame(timestamp(n), frame);
+            frame.release();
+        }
+        recorder.close();
+        assertTrue(Segment.list(dir).length > 1);
+
+        mPlayback = new PlaybackCamera(mListener, dir, mPool);
+        mPlayback.start();
+        expect("connected");
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mPlayback.stop();
+        while (!"disconnected".equals(mEvents.poll(TIMEOUT, TimeUnit.MILLISECONDS)))
+        {
+            // the rest of the events
+        }
+    }
+
+    private void expect(final String event) throws InterruptedException {
+        assertEquals(event, mEvents.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void begin() throws InterruptedException {
+        // so slow that only seek and step move it
+        mPlayback.setSpeed(0.0001);
+        mPlayback.request_beginvideo("320x240");
+        expect("ready 320x240");
+        expect("frame 0");
+    }
+
+    @Test
+    public void sizeListIsRecordedSize() throws InterruptedException {
+        mPlayback.request_sizelist();
+        expect("sizes [320x240]");
+    }
+
+    @Test
+    public void seekAndStep() throws InterruptedException {
+        begin();
+
+        mPlayback.seek(timestamp(20) + 5);
+        expect("frame 20");
+
+        mPlayback.step(1);
+        expect("frame 21");
+
+        // over the segment boundaries, only the last one is shown
+        mPlayback.step(-3);
+        expect("frame 18");
+
+        mPlayback.step(-100);
+        expect("frame 0");
+
+        mPlayback.step(100);
+        expect("frame " + (FRAMES - 1));
+
+        // already at the end, nothing
+        mPlayback.step(1);
+        assertNull(mEvents.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void playsToTheEnd() throws InterruptedException {
+        begin();
+
+        mPlayback.seek(timestamp(10));
+        expect("frame 10");
+
+        mPlayback.setSpeed(1000);
+        mPlayback.play();
+        for (int n = 11; n < FRAMES; n++)
+        {
+            expect("frame " + n);
+        }
+
+        assertNull(mEvents.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(!mPlayback.isPlaying());
+    }
+}
@@ -0,0 +1,219 @@
+package com.aaronps.camview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * ProtocolParser fed the same stream in every possible way: whole, a byte at a
+ * time, in chunks of every size and reading the payloads directly into the
+ * frames like the connection does.
+ *
+ * @author krom
+ */
+public class ProtocolParserTest {
+
+    private static final int MAX_FRAME = 64;
+
+    private FramePool mPool;
+    private RemoteCamera mCamera;
+    private ProtocolParser mParser;
+    private final List<String> mEvents = new ArrayList<>();
+
+    private final RemoteCamera.Listener mListener = new RemoteCamera.Listener() {
+
+        @Override
+        public void onConnected(final CameraSource ct) {
+        }
+
+        @Override
+        public void onDisconnected(final CameraSource ct) {
+        }
+
+        @Override
+        public void onVideoReady(final CameraSource ct, final CameraInfo info) {
+            mEvents.add("ready " + info.width + " " + info.height + " " + info.type);
+        }
+
+        @Override
+        public void onSizeListReceived(final CameraSource ct, final String[] sizes) {
+            mEvents.add("sizes " + Arrays.toString(sizes));
+        }
+
+        @Override
+        public void onFrameReceived(final CameraSource ct, final FrameBuffer frame) {
+            mEvents.add("pic " + frame.getSequence() + " "
+                    + new String(frame.array(), 0, frame.length(), StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public void onFrameSkipped(final CameraSource ct, final int length) {
+            mEvents.add("skipped " + length);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mPool = new FramePool(1024 * 1024);
+        mCamera = new RemoteCamera(mListener, "localhost", 1, mPool);
+        mCamera.setMaxFrameSize(MAX_FRAME);
+        mParser = new ProtocolParser(mCamera, mListener, mPool);
+    }
+
+    private static byte[] stream() {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final StringBuilder big = new StringBuilder();
+        for (int n = 0; n < MAX_FRAME + 10; n++)
+        {
+            big.append((char) ('a' + n % 26));
+        }
+
+        write(os, "SizeList 640x480 1280x720\n");
+        write(os, "Ready 640 480 1\n");
+        write(os, "Pic 5\nhello");
+        // a payload that looks like a message
+        write(os, "Pic 6\nPic 3\n");
+        write(os, "Pic 0\n");
+        write(os, "Pic " + big.length() + "\n" + big);
+        write(os, "Whatever this is\n");
+        write(os, "Pic 1\n\n");
+        write(os, "Pic 4\nlast");
+        return os.toByteArray();
+    }
+
+    private static void write(final ByteArrayOutputStream os, final String s) {
+        final byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+        os.write(b, 0, b.length);
+    }
+
+    private static List<String> expected() {
+        return Arrays.asList(
+                "sizes [640x480, 1280x720]",
+                "ready 640 480 1",
+                "pic 1 hello",
+                "pic 2 Pic 3\n",
+                "skipped 0",
+                "skipped " + (MAX_FRAME + 10),
+                "pic 5 \n",
+                "pic 6 last");
+    }
+
+    /**
+     * Feeds the data like the blocking connection: read what fits, parse,
+     * compact.
+     */
+    private void feed(final byte[] data, final int chunk, final int bufferSize) throws IOException {
+        final ByteBuffer bb = ByteBuffer.allocate(bufferSize);
+        int pos = 0;
+        while (pos < data.length)
+        {
+            final int n = Math.min(Math.min(chunk, bb.remaining()), data.length - pos);
+            bb.put(data, pos, n);
+            pos += n;
+            bb.flip();
+            mParser.parse(bb);
+            bb.compact();
+        }
+    }
+
+    private void assertAllReleased() {
+        assertEquals("frames not released", mPool.getPooledBytes(), mPool.getFreeBytes());
+    }
+
+    @Test
+    public void wholeStream() throws IOException {
+        final byte[] data = stream();
+        feed(data, data.length, data.length);
+        assertEquals(expected(), mEvents);
+        assertAllReleased();
+    }
+
+    @Test
+    public void byteAtATime() throws IOException {
+        feed(stream(), 1, 64);
+        assertEquals(expected(), mEvents);
+        assertAllReleased();
+    }
+
+    @Test
+    public void everyChunkSize() throws IOException {
+        final byte[] data = stream();
+        for (int chunk = 1; chunk <= data.length; chunk++)
+        {
+            mEvents.clear();
+            mParser.reset();
+            feed(data, chunk, 64);
+            assertEquals("chunk " + chunk, expected(), mEvents);
+        }
+        assertAllReleased();
+    }
+
+    @Test
+    public void payloadReadIntoTarget() throws IOException {
+        final byte[] data = stream();
+        final ByteBuffer bb = ByteBuffer.allocate(32);
+        int pos = 0;
+        while (pos < data.length)
+        {
+            final ByteBuffer target = mParser.payloadTarget();
+            if (target != null && bb.position() == 0)
+            {
+                // nothing buffered, the rest of the pic goes straight in,
+                // a few bytes at a time
+                final int n = Math.min(Math.min(3, target.remaining()), data.length - pos);
+                target.put(data, pos, n);
+                pos += n;
+                mParser.payloadRead();
+                continue;
+            }
+
+            final int n = Math.min(Math.min(7, bb.remaining()), data.length - pos);
+            bb.put(data, pos, n);
+            pos += n;
+            bb.flip();
+            mParser.parse(bb);
+            bb.compact();
+        }
+
+        assertEquals(expected(), mEvents);
+        assertAllReleased();
+    }
+
+    @Test
+    public void resetReleasesPartialFrame() throws IOException {
+        final byte[] data = "Pic 10\nhalf".getBytes(StandardCharsets.ISO_8859_1);
+        feed(data, data.length, 64);
+        mParser.reset();
+        assertAllReleased();
+
+        feed("Pic 2\nok".getBytes(StandardCharsets.ISO_8859_1), 100, 64);
+        assertEquals(Arrays.asList("pic 1 ok"), mEvents);
+    }
+
+    @Test
+    public void badNumber() {
+        try
+        {
+            feed("Pic 12x\n".getBytes(StandardCharsets.ISO_8859_1), 100, 64);
+            fail("bad number accepted");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void commandPrefixIsNotCommand() throws IOException {
+        feed("Pictures 3\nReadyX 1 2 3\n".getBytes(StandardCharsets.ISO_8859_1), 100, 64);
+        assertEquals(Arrays.asList(), mEvents);
+    }
+}
@@ -0,0 +1,307 @@
+package com.aaronps.camview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trip of SegmentedRecorder and SegmentArchive.
+ *
+ * @author krom
+ */
+public class SegmentedRecorderTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FramePool mPool = new FramePool(1024 * 1024);
+
+    private static CameraInfo info(final int width, final int height) {
+        final CameraInfo info = new CameraInfo();
+        info.width = width;
+        info.height = height;
+        info.type = CameraInfo.TYPE_JPEG;
+        return info;
+    }
+
+    /**
+     * Frame n has 100 + n * 7 % 300 bytes, all of them n.
+     */
+    private FrameBuffer frame(final int n) {
+        final FrameBuffer frame = mPool.acquire(100 + n * 7 % 300);
+        Arrays.fill(frame.array(), 0, frame.length(), (byte) n);
+        return frame;
+    }
+
+    private static long timestamp(final int n) {
+        return 1000000 + n * 40;
+    }
+
+    /**
+     * Records frames 0 to count - 1, the format changes at formatChange.
+     */
+    private void record(final SegmentedRecorder recorder,
+                        final int count,
+                        final int formatChange) throws IOException {
+        recorder.videoInfo(timestamp(0), info(640, 480));
+        for (int n = 0; n < count; n++)
+        {
+            if (n == formatChange)
+            {
+                recorder.videoInfo(timestamp(n), info(320, 240));
+            }
+
+            final FrameBuffer frame = frame(n);
+            recorder.frame(timestamp(n), frame);
+            frame.release();
+        }
+    }
+
+    /**
+     * Reads back every frame in order through the archive.
+     */
+    private void assertFrames(final SegmentArchive archive,
+                              final int count,
+                              final int formatChange) throws IOException {
+        int n = 0;
+        for (int s = 0; s < archive.segmentCount(); s++)
+        {
+            for (int e = 0; e < archive.frameCount(s); e++, n++)
+            {
+                assertEquals(timestamp(n), archive.timestamp(s, e));
+                assertEquals(n < formatChange ? 640 : 320, archive.info(s).width);
+
+                final FrameBuffer expected = frame(n);
+                final FrameBuffer actual = archive.read(s, e, mPool);
+                assertArrayEquals("frame " + n,
+                                  Arrays.copyOf(expected.array(), expected.length()),
+                                  Arrays.copyOf(actual.array(), actual.length()));
+                expected.release();
+                actual.release();
+            }
+        }
+        assertEquals(count, n);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final File dir = mFolder.newFolder();
+        final SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        record(recorder, 100, 60);
+        recorder.close();
+
+        final SegmentArchive archive = new SegmentArchive(dir);
+        try
+        {
+            assertTrue(archive.segmentCount() > 3);
+            assertEquals(timestamp(0), archive.firstTimestamp());
+            assertEquals(timestamp(99), archive.lastTimestamp());
+            assertFrames(archive, 100, 60);
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void finishedSegmentsAreTruncated() throws IOException {
+        final File dir = mFolder.newFolder();
+        final SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        // two segments finished far from full, by the format change and the
+        // close
+        record(recorder, 10, 5);
+        recorder.close();
+
+        assertEquals(2, Segment.list(dir).length);
+        for (File f : Segment.list(dir))
+        {
+            assertTrue(f + " is " + f.length(), f.length() < SEGMENT_SIZE);
+        }
+    }
+
+    @Test
+    public void fullSegmentKeepsIndexInPlace() throws IOException {
+        // 30 records of 110 bytes leave one index entry of free space, less
+        // than the index, so it is not moved
+        final File dir = mFolder.newFolder();
+        final SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        final int length = 110;
+        final int count = (SEGMENT_SIZE - Segment.HEADER_SIZE - Segment.INDEX_ENTRY_SIZE)
+                          / (Segment.RECORD_HEADER_SIZE + length + Segment.INDEX_ENTRY_SIZE);
+        assertEquals(30, count);
+
+        recorder.videoInfo(timestamp(0), info(640, 480));
+        for (int n = 0; n < count; n++)
+        {
+            final FrameBuffer frame = mPool.acquire(length);
+            Arrays.fill(frame.array(), 0, length, (byte) n);
+            recorder.frame(timestamp(n), frame);
+            frame.release();
+        }
+        recorder.close();
+
+        final File[] files = Segment.list(dir);
+        assertEquals(1, files.length);
+        assertEquals(SEGMENT_SIZE, files[0].length());
+
+        final SegmentArchive archive = new SegmentArchive(dir);
+        try
+        {
+            assertEquals(count, archive.frameCount(0));
+            for (int n = 0; n < count; n++)
+            {
+                assertEquals(timestamp(n), archive.timestamp(0, n));
+                final FrameBuffer frame = archive.read(0, n, mPool);
+                assertEquals(length, frame.length());
+                assertEquals((byte) n, frame.array()[0]);
+                assertEquals((byte) n, frame.array()[length - 1]);
+                frame.release();
+            }
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void unfinishedSegmentIsReadable() throws IOException {
+        // like a crash, the current segment is neither moved nor truncated
+        final File dir = mFolder.newFolder();
+        final SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        record(recorder, 20, 20);
+
+        final File[] files = Segment.list(dir);
+        assertEquals(SEGMENT_SIZE, files[files.length - 1].length());
+
+        final SegmentArchive archive = new SegmentArchive(dir);
+        try
+        {
+            assertFrames(archive, 20, 20);
+        }
+        finally
+        {
+            archive.close();
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void seek() throws IOException {
+        final File dir = mFolder.newFolder();
+        final SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        record(recorder, 100, 100);
+        recorder.close();
+
+        final SegmentArchive archive = new SegmentArchive(dir);
+        try
+        {
+            for (int n = 0; n < 100; n++)
+            {
+                // halfway to the next frame finds this one
+                final long t = timestamp(n) + 20;
+                final int s = archive.findSegment(t);
+                final int e = archive.findEntry(s, t);
+                assertEquals(timestamp(n), archive.timestamp(s, e));
+            }
+
+            // before the start, the first frame
+            assertEquals(0, archive.findSegment(0));
+            assertEquals(0, archive.findEntry(0, 0));
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void frameAfterCloseIsRejected() throws IOException {
+        final File dir = mFolder.newFolder();
+        final SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        record(recorder, 5, 5);
+        recorder.close();
+        final int before = Segment.list(dir).length;
+
+        final FrameBuffer frame = frame(5);
+        try
+        {
+            recorder.frame(timestamp(5), frame);
+            fail("frame recorded after close");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        finally
+        {
+            frame.release();
+        }
+
+        // no new segment left unfinished
+        assertEquals(before, Segment.list(dir).length);
+    }
+
+    @Test
+    public void retentionDeletesOldest() throws IOException {
+        final File dir = mFolder.newFolder();
+        final SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, SEGMENT_SIZE * 3);
+        record(recorder, 200, 200);
+        recorder.close();
+
+        long total = 0;
+        for (File f : Segment.list(dir))
+        {
+            total += f.length();
+        }
+        assertTrue("kept " + total, total <= SEGMENT_SIZE * 3);
+
+        final SegmentArchive archive = new SegmentArchive(dir);
+        try
+        {
+            assertEquals(timestamp(199), archive.lastTimestamp());
+            assertTrue(archive.firstTimestamp() > timestamp(0));
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void appendsAfterExistingSegments() throws IOException {
+        final File dir = mFolder.newFolder();
+        SegmentedRecorder recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        record(recorder, 10, 10);
+        recorder.close();
+        final int before = Segment.list(dir).length;
+
+        recorder = new SegmentedRecorder(dir, SEGMENT_SIZE, 0);
+        recorder.videoInfo(timestamp(10), info(640, 480));
+        final FrameBuffer frame = frame(10);
+        recorder.frame(timestamp(10), frame);
+        frame.release();
+        recorder.close();
+
+        assertEquals(before + 1, Segment.list(dir).length);
+        final SegmentArchive archive = new SegmentArchive(dir);
+        try
+        {
+            assertFrames(archive, 11, 11);
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+}